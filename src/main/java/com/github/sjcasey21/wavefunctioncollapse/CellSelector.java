@@ -0,0 +1,384 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Strategy for picking the next cell to observe. A selector is reset when a
+ * generation starts (or a snapshot is restored), told about every cell that
+ * loses patterns, and asked for the next undecided cell once per
+ * observation. A selector instance belongs to one model at a time.
+ *
+ * <p>A restored snapshot resumes exactly like the run it was taken from
+ * with every selector but {@link #minimumRemaining}, whose draw among
+ * equally constrained cells depends on the order they were constrained in.
+ */
+public abstract class CellSelector {
+  /** The solver state a selector works on. Cell i is x + (y + z * height) * width. */
+  public interface Wave {
+    int width();
+
+    int height();
+
+    int depth();
+
+    /** Whether cell i takes part in observation at all. */
+    boolean observable(int i);
+
+    /** Number of patterns still possible in cell i. */
+    int remaining(int i);
+
+    /** Weighted entropy of cell i. */
+    double entropy(int i);
+
+    Random random();
+  }
+
+  /** Start over on the current state of wave. */
+  public abstract void reset(Wave wave);
+
+  /** Cell i lost patterns. */
+  public abstract void changed(int i);
+
+  /**
+   * An observable cell with more than one pattern left, or -1 if there is
+   * none.
+   */
+  public abstract int next();
+
+  /**
+   * State a snapshot keeps so that a restored generation continues like the
+   * one it was taken from, or null if reset() rebuilds everything.
+   */
+  double[] save() {
+    return null;
+  }
+
+  /** Start over on a restored wave, with state from save() if there was any. */
+  void restore(Wave wave, double[] state) {
+    this.reset(wave);
+  }
+
+  /**
+   * Minimum entropy by scanning every cell on every observation, with fresh
+   * random noise to break ties. Reproduces the original generations for a
+   * given seed; O(cells) per observation.
+   */
+  public static CellSelector entropyScan() {
+    return new EntropyScan();
+  }
+
+  /**
+   * Minimum entropy kept in an indexed binary heap, O(log cells) per
+   * changed cell. Ties are broken by per-cell noise drawn on every reset
+   * and kept in snapshots.
+   */
+  public static CellSelector entropy() {
+    return new EntropyHeap();
+  }
+
+  /**
+   * Minimum remaining values: the cell with the fewest possible patterns,
+   * kept in bucket queues, ties drawn at random. O(1) per changed cell.
+   */
+  public static CellSelector minimumRemaining() {
+    return new BucketQueue();
+  }
+
+  /** Cells in index order: along x, then y, then z. */
+  public static CellSelector scanline() {
+    return new Order(false);
+  }
+
+  /** Cells in a square spiral from the centre outwards, layer by layer. */
+  public static CellSelector spiral() {
+    return new Order(true);
+  }
+
+  static final class EntropyScan extends CellSelector {
+    private Wave wave;
+    private int cells;
+
+    @Override
+    public void reset(Wave wave) {
+      this.wave = wave;
+      this.cells = wave.width() * wave.height() * wave.depth();
+    }
+
+    @Override
+    public void changed(int i) {}
+
+    @Override
+    public int next() {
+      double min = 1E+3;
+      int argmin = -1;
+
+      for (int i = 0; i < this.cells; i++) {
+        if (!this.wave.observable(i)) continue;
+
+        double entropy = this.wave.entropy(i);
+        if (this.wave.remaining(i) > 1 && entropy <= min) {
+          double noise = 1E-6 * this.wave.random().nextDouble();
+          if (entropy + noise < min) {
+            min = entropy + noise;
+            argmin = i;
+          }
+        }
+      }
+
+      return argmin;
+    }
+  }
+
+  static final class EntropyHeap extends CellSelector {
+    private Wave wave;
+    private int[] heap, position, dirty;
+    private boolean[] marked;
+    private double[] key, noise;
+    private int size, dirtyCount;
+
+    @Override
+    public void reset(Wave wave) {
+      this.restore(wave, null);
+    }
+
+    @Override
+    double[] save() {
+      return this.noise == null ? null : this.noise.clone();
+    }
+
+    @Override
+    void restore(Wave wave, double[] state) {
+      this.wave = wave;
+      int cells = wave.width() * wave.height() * wave.depth();
+      if (this.heap == null || this.heap.length != cells) {
+        this.heap = new int[cells];
+        this.position = new int[cells];
+        this.dirty = new int[cells];
+        this.marked = new boolean[cells];
+        this.key = new double[cells];
+        this.noise = new double[cells];
+      }
+
+      boolean draw = state == null || state.length != cells;
+      this.size = 0;
+      this.dirtyCount = 0;
+      for (int i = 0; i < cells; i++) {
+        this.position[i] = -1;
+        this.marked[i] = false;
+        this.noise[i] = draw ? 1E-6 * wave.random().nextDouble() : state[i];
+        if (!wave.observable(i) || wave.remaining(i) <= 1) continue;
+        this.key[i] = this.keyOf(i);
+        this.position[i] = this.size;
+        this.heap[this.size++] = i;
+      }
+      for (int h = this.size / 2 - 1; h >= 0; h--) this.down(h);
+    }
+
+    private double keyOf(int i) {
+      return this.wave.entropy(i) + this.noise[i];
+    }
+
+    @Override
+    public void changed(int i) {
+      // Updated lazily, a cell typically loses many patterns per step.
+      if (this.position[i] < 0 || this.marked[i]) return;
+      this.marked[i] = true;
+      this.dirty[this.dirtyCount++] = i;
+    }
+
+    @Override
+    public int next() {
+      for (int d = 0; d < this.dirtyCount; d++) {
+        int i = this.dirty[d];
+        int h = this.position[i];
+        this.marked[i] = false;
+
+        if (this.wave.remaining(i) <= 1) {
+          this.remove(h);
+          continue;
+        }
+
+        this.key[i] = this.keyOf(i);
+        this.up(h);
+        this.down(this.position[i]);
+      }
+      this.dirtyCount = 0;
+
+      return this.size == 0 ? -1 : this.heap[0];
+    }
+
+    private void remove(int h) {
+      int i = this.heap[h];
+      this.position[i] = -1;
+      this.size--;
+      if (h == this.size) return;
+
+      int moved = this.heap[this.size];
+      this.heap[h] = moved;
+      this.position[moved] = h;
+      this.up(h);
+      this.down(this.position[moved]);
+    }
+
+    private void up(int h) {
+      int i = this.heap[h];
+      while (h > 0) {
+        int parent = (h - 1) / 2;
+        if (this.key[this.heap[parent]] <= this.key[i]) break;
+        this.heap[h] = this.heap[parent];
+        this.position[this.heap[h]] = h;
+        h = parent;
+      }
+      this.heap[h] = i;
+      this.position[i] = h;
+    }
+
+    private void down(int h) {
+      int i = this.heap[h];
+      while (true) {
+        int child = 2 * h + 1;
+        if (child >= this.size) break;
+        if (
+          child + 1 < this.size &&
+          this.key[this.heap[child + 1]] < this.key[this.heap[child]]
+        ) child++;
+        if (this.key[i] <= this.key[this.heap[child]]) break;
+        this.heap[h] = this.heap[child];
+        this.position[this.heap[h]] = h;
+        h = child;
+      }
+      this.heap[h] = i;
+      this.position[i] = h;
+    }
+  }
+
+  // Cells are kept in one array per number of remaining patterns and
+  // removed by swapping in the last entry. Counts only go down during a
+  // generation, so the lowest non-empty bucket is found by moving a cursor
+  // up from the last count that was added. The cell to observe is drawn
+  // from that bucket with the model's random, like the noise the entropy
+  // selectors break ties with.
+  static final class BucketQueue extends CellSelector {
+    private Wave wave;
+    private int[][] members;
+    private int[] sizes, bucket, slot;
+    private int min;
+
+    @Override
+    public void reset(Wave wave) {
+      this.wave = wave;
+      int cells = wave.width() * wave.height() * wave.depth();
+      if (this.bucket == null || this.bucket.length != cells) {
+        this.bucket = new int[cells];
+        this.slot = new int[cells];
+      }
+
+      int max = 1;
+      for (int i = 0; i < cells; i++) max = Math.max(max, wave.remaining(i));
+      if (this.members == null || this.members.length <= max) {
+        this.members = new int[max + 1][];
+        this.sizes = new int[max + 1];
+      } else Arrays.fill(this.sizes, 0);
+
+      this.min = this.members.length;
+      for (int i = 0; i < cells; i++) {
+        this.bucket[i] = 0;
+        if (wave.observable(i)) this.add(i, wave.remaining(i));
+      }
+    }
+
+    private void add(int i, int count) {
+      this.bucket[i] = count;
+      if (count <= 1) return;
+
+      int[] members = this.members[count];
+      int size = this.sizes[count];
+      if (members == null) members = this.members[count] = new int[16]; else if (
+        size == members.length
+      ) members = this.members[count] = Arrays.copyOf(members, 2 * size);
+
+      this.slot[i] = size;
+      members[size] = i;
+      this.sizes[count] = size + 1;
+      if (count < this.min) this.min = count;
+    }
+
+    @Override
+    public void changed(int i) {
+      int count = this.bucket[i];
+      if (count <= 1 || count == this.wave.remaining(i)) return;
+
+      int[] members = this.members[count];
+      int last = members[--this.sizes[count]];
+      members[this.slot[i]] = last;
+      this.slot[last] = this.slot[i];
+
+      this.add(i, this.wave.remaining(i));
+    }
+
+    @Override
+    public int next() {
+      while (this.min < this.members.length && this.sizes[this.min] == 0) this.min++;
+      if (this.min == this.members.length) return -1;
+      return this.members[this.min][this.wave.random().nextInt(this.sizes[this.min])];
+    }
+  }
+
+  static final class Order extends CellSelector {
+    private final boolean spiral;
+    private Wave wave;
+    private int[] order;
+    private int cursor;
+
+    Order(boolean spiral) {
+      this.spiral = spiral;
+    }
+
+    @Override
+    public void reset(Wave wave) {
+      this.wave = wave;
+      int X = wave.width(), Y = wave.height(), Z = wave.depth();
+      if (this.order == null || this.order.length != X * Y * Z) {
+        this.order = new int[X * Y * Z];
+        if (this.spiral) Order.spiral(this.order, X, Y, Z); else for (int i =
+          0; i < this.order.length; i++) this.order[i] = i;
+      }
+      this.cursor = 0;
+    }
+
+    private static void spiral(int[] order, int X, int Y, int Z) {
+      int n = 0;
+      for (int z = 0; z < Z; z++) {
+        int x = (X - 1) / 2, y = (Y - 1) / 2, found = 0;
+        // Runs of 1, 1, 2, 2, 3, 3, ... steps turning right each time.
+        for (int run = 1, d = 0; found < X * Y; d++) {
+          for (int s = 0; s < run && found < X * Y; s++) {
+            if (x >= 0 && y >= 0 && x < X && y < Y) {
+              order[n++] = x + (y + z * Y) * X;
+              found++;
+            }
+            x += Model.DX[(d + 2) % 4];
+            y += Model.DY[(d + 2) % 4];
+          }
+          if (d % 2 == 1) run++;
+        }
+      }
+    }
+
+    @Override
+    public void changed(int i) {}
+
+    @Override
+    public int next() {
+      while (this.cursor < this.order.length) {
+        int i = this.order[this.cursor];
+        if (this.wave.observable(i) && this.wave.remaining(i) > 1) return i;
+        this.cursor++;
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Outcome of an asynchronous generation with a deadline, see
+ * {@link Model#generate} and {@link TextWFCModel#generate}.
+ * @param <S> Type of the solver state handed back with the outcome.
+ */
+public final class Generation<S> {
+  public enum Status {
+    /** Every cell was decided. */
+    DONE,
+    /** The deadline passed first. */
+    TIMEOUT,
+    /** A cell ran out of patterns. */
+    CONTRADICTION,
+  }
+
+  public final Status status;
+
+  /** The state the generation stopped in; what it holds depends on the model. */
+  public final S state;
+
+  Generation(Status status, S state) {
+    this.status = status;
+    this.state = state;
+  }
+
+  static Status status(Boolean result) {
+    return result == null
+      ? Status.TIMEOUT
+      : result ? Status.DONE : Status.CONTRADICTION;
+  }
+
+  private static final ScheduledThreadPoolExecutor DEADLINES;
+
+  static {
+    DEADLINES =
+      new ScheduledThreadPoolExecutor(
+        1,
+        runnable -> {
+          Thread thread = new Thread(runnable, "wfc-deadline");
+          thread.setDaemon(true);
+          return thread;
+        }
+      );
+    DEADLINES.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Run task on executor, handing it a check that turns true once the
+   * deadline has passed or the returned future was completed (e.g. by
+   * cancel()). A task still waiting for a thread at the deadline, queued
+   * behind others on a bounded executor, is not run: the future completes
+   * with TIMEOUT and the untouched state right then. A task that is running
+   * stops at its next check. A rejected task completes the future
+   * exceptionally.
+   * @param untouched State handed back when the task never ran.
+   */
+  static <S> CompletableFuture<Generation<S>> start(
+    long timeout,
+    TimeUnit unit,
+    Executor executor,
+    S untouched,
+    Function<BooleanSupplier, Generation<S>> task
+  ) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    CompletableFuture<Generation<S>> future = new CompletableFuture<>();
+    BooleanSupplier stop = () ->
+      future.isDone() || System.nanoTime() - deadline >= 0;
+    // Set by whichever comes first, the task starting or the deadline.
+    AtomicBoolean claimed = new AtomicBoolean();
+
+    ScheduledFuture<?> timer = DEADLINES.schedule(
+      () -> {
+        if (claimed.compareAndSet(false, true)) future.complete(
+          new Generation<>(Status.TIMEOUT, untouched)
+        );
+      },
+      deadline - System.nanoTime(),
+      TimeUnit.NANOSECONDS
+    );
+    future.whenComplete((generation, error) -> timer.cancel(false));
+
+    try {
+      executor.execute(
+        () -> {
+          if (!claimed.compareAndSet(false, true) || future.isDone()) return;
+          try {
+            future.complete(task.apply(stop));
+          } catch (Throwable e) {
+            future.completeExceptionally(e);
+          }
+        }
+      );
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+}
@@ -0,0 +1,737 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import javax.imageio.ImageIO;
+
+/**
+ * Embeddable HTTP front end for the models, on the JDK's HttpServer.
+ * Samples are read from one directory and named by their path in it.
+ *
+ * <pre>
+ * GET /overlapping?sample=Flowers2.png&amp;N=3&amp;symmetry=8&amp;periodicInput=true
+ *                 &amp;width=48&amp;height=48&amp;periodic=true&amp;ground=0&amp;seed=1
+ * GET /tiled?sample=knot&amp;subset=&amp;unique=false
+ *           &amp;width=24&amp;height=24&amp;periodic=false&amp;black=false&amp;seed=1
+ * GET /text?sample=input.txt&amp;chunkWidth=2&amp;chunkHeight=2&amp;width=24&amp;height=9&amp;seed=1
+ * GET /stats
+ * </pre>
+ *
+ * Images are returned as PNG and text as plain text, with status 409 for a
+ * contradiction, 504 when the generation timed out, 503 when the worker
+ * queue is full and 400 for bad parameters, outputs above the cell limit
+ * included. Compiled rules are cached by sample and parameters;
+ * finished generations are cached by rules hash, output size, output
+ * options and seed, and evicted least recently used first once their bodies
+ * exceed the cache size. Identical requests that arrive while one is being
+ * solved wait for that one instead of solving again. The X-Cache header
+ * tells which of hit, miss or shared a response was. Image models are kept
+ * in a {@link SolverPool} per rules, output size and options, and pools are
+ * evicted least recently used first once the models they may hold exceed
+ * the pool budget.
+ */
+public final class GenerationServer {
+  private final Path samples;
+  private final ThreadPoolExecutor workers;
+  private final long timeout;
+  private final long maxCells;
+
+  private final Lru<String, Rules<?>> rules;
+  private final Lru<Key, Response> results;
+  private final Lru<String, Pool> pools;
+  private final ConcurrentHashMap<Object, CompletableFuture<?>> flights =
+    new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong shared = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  private HttpServer server;
+
+  /**
+   * @param samples Directory the samples are read from.
+   * @param threads Number of generations solved at the same time.
+   * @param queue Number of generations waiting for a thread before requests
+   * are turned away.
+   * @param maxCells Largest output a request may ask for, as width times
+   * height in pixels, tiles or characters.
+   * @param rulesCapacity Number of compiled rule sets kept.
+   * @param resultsBytes Total size of the cached responses.
+   * @param poolEntries Budget of the pooled models, in output cells times
+   * patterns: a pool counts for as many models as there are threads, each
+   * weighing its cells times the patterns of its rules.
+   * @param timeout Time budget of a request.
+   */
+  public GenerationServer(
+    Path samples,
+    int threads,
+    int queue,
+    long maxCells,
+    int rulesCapacity,
+    long resultsBytes,
+    long poolEntries,
+    long timeout,
+    TimeUnit unit
+  ) {
+    this.samples = samples.toAbsolutePath().normalize();
+    this.workers =
+      new ThreadPoolExecutor(
+        threads,
+        threads,
+        0,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue),
+        runnable -> {
+          Thread thread = new Thread(runnable, "wfc-worker");
+          thread.setDaemon(true);
+          return thread;
+        }
+      );
+    this.timeout = unit.toNanos(timeout);
+    this.maxCells = maxCells;
+    this.rules = new Lru<>(rulesCapacity, rules -> 1);
+    this.results = new Lru<>(resultsBytes, response -> response.body.length);
+    this.pools = new Lru<>(poolEntries, pool -> pool.weight);
+  }
+
+  /**
+   * Start serving.
+   * @param address Address to bind, port 0 for any free port.
+   * @return The bound address.
+   */
+  public synchronized InetSocketAddress start(InetSocketAddress address)
+    throws IOException {
+    if (this.server != null) throw new IllegalStateException("Already started");
+
+    this.server = HttpServer.create(address, 0);
+    this.route("/overlapping", this::overlapping);
+    this.route("/tiled", this::tiled);
+    this.route("/text", this::text);
+    this.route(
+        "/stats",
+        query -> CompletableFuture.completedFuture(
+          Response.text(200, this.stats())
+        )
+      );
+    this.server.start();
+
+    return this.server.getAddress();
+  }
+
+  public synchronized void stop() {
+    if (this.server != null) this.server.stop(0);
+    this.server = null;
+    this.workers.shutdownNow();
+  }
+
+  public String stats() {
+    return String.format(
+      "hits %d%nmisses %d%nshared %d%nrejected %d%ncached %d responses, %d bytes%nrules %d%npools %d%n",
+      this.hits.get(),
+      this.misses.get(),
+      this.shared.get(),
+      this.rejected.get(),
+      this.results.size(),
+      this.results.weight(),
+      this.rules.size(),
+      this.pools.size()
+    );
+  }
+
+  private CompletableFuture<Response> overlapping(Map<String, String> query) {
+    Path file = this.sample(query);
+    int N = GenerationServer.integer(query, "N", 3);
+    int symmetry = GenerationServer.integer(query, "symmetry", 8);
+    boolean periodicInput = GenerationServer.bool(query, "periodicInput", true);
+    int width = GenerationServer.size(query, "width", 48);
+    int height = GenerationServer.size(query, "height", 48);
+    this.area(width, height);
+    boolean periodic = GenerationServer.bool(query, "periodic", false);
+    int ground = GenerationServer.integer(query, "ground", 0);
+    int seed = GenerationServer.integer(query, "seed", 0);
+    long deadline = System.nanoTime() + this.timeout;
+
+    return this.<PatternSet>rules(
+        "overlapping " + file + " " + N + " " + symmetry + " " + periodicInput,
+        () -> {
+          BufferedImage image = ImageIO.read(file.toFile());
+          if (image == null) throw new IOException("Not an image: " + file);
+          PatternSet patterns = PatternSet.compile(
+            image,
+            N,
+            periodicInput,
+            symmetry
+          );
+          return new Rules<>(
+            patterns,
+            Model.rulesHash(patterns.weights, patterns.propagator)
+          );
+        }
+      )
+      .thenCompose(
+        rules -> this.result(
+            new Key("overlapping", rules.hash, width, height, seed, periodic + " " + ground),
+            () -> this.image(
+                this.pool(
+                  "overlapping " + rules.hash + " " + width + " " + height + " " + periodic + " " + ground,
+                  (long) width * height * rules.rules.T,
+                  () -> new OverlappingModel(rules.rules, width, height, periodic, ground)
+                ),
+                seed,
+                deadline
+              )
+          )
+      );
+  }
+
+  private CompletableFuture<Response> tiled(Map<String, String> query) {
+    Path path = this.sample(query);
+    Path file = Files.isDirectory(path) ? path.resolve("data.xml") : path;
+    String subset = query.get("subset");
+    if (subset != null && subset.isEmpty()) subset = null;
+    boolean unique = GenerationServer.bool(query, "unique", false);
+    int width = GenerationServer.size(query, "width", 24);
+    int height = GenerationServer.size(query, "height", 24);
+    this.area(width, height);
+    boolean periodic = GenerationServer.bool(query, "periodic", false);
+    boolean black = GenerationServer.bool(query, "black", false);
+    int seed = GenerationServer.integer(query, "seed", 0);
+    long deadline = System.nanoTime() + this.timeout;
+
+    String name = subset;
+    return this.<TileSet>rules(
+        "tiled " + file + " " + subset + " " + unique,
+        () -> {
+          TileSet tileset = TileSet.load(file, name, unique);
+          return new Rules<>(
+            tileset,
+            Model.rulesHash(tileset.weights, tileset.propagator)
+          );
+        }
+      )
+      .thenCompose(
+        rules -> this.result(
+            new Key("tiled", rules.hash, width, height, seed, periodic + " " + black),
+            () -> this.image(
+                this.pool(
+                  "tiled " + rules.hash + " " + width + " " + height + " " + periodic + " " + black,
+                  (long) width * height * rules.rules.T,
+                  () -> new SimpleTiledModel(rules.rules, width, height, periodic, black)
+                ),
+                seed,
+                deadline
+              )
+          )
+      );
+  }
+
+  private CompletableFuture<Response> text(Map<String, String> query) {
+    Path file = this.sample(query);
+    int chunkWidth = GenerationServer.size(query, "chunkWidth", 2);
+    int chunkHeight = GenerationServer.size(query, "chunkHeight", 2);
+    int width = GenerationServer.size(query, "width", 24);
+    int height = GenerationServer.size(query, "height", 9);
+    this.area(width, height);
+    int seed = GenerationServer.integer(query, "seed", 0);
+    long deadline = System.nanoTime() + this.timeout;
+
+    return this.<TextCorpus>rules(
+        "text " + file + " " + chunkWidth + " " + chunkHeight,
+        () -> {
+          TextCorpus corpus = TextCorpus.load(
+            Collections.singletonList(file),
+            chunkWidth,
+            chunkHeight
+          );
+          return new Rules<>(corpus, corpus.rulesHash());
+        }
+      )
+      .thenCompose(
+        rules -> this.result(
+            new Key("text", rules.hash, width, height, seed, ""),
+            () -> this.async(() -> new TextWFCModel(rules.rules, width, height))
+              .thenCompose(
+                model -> model.generate(
+                  seed,
+                  deadline - System.nanoTime(),
+                  TimeUnit.NANOSECONDS,
+                  this.workers
+                )
+              )
+              .thenApply(
+                generation -> {
+                  if (
+                    generation.status == Generation.Status.TIMEOUT
+                  ) return Response.TIMEOUT;
+
+                  StringBuilder text = new StringBuilder();
+                  for (char[] row : generation.state) text.append(row).append('\n');
+                  return Response.text(
+                    generation.status == Generation.Status.DONE ? 200 : 409,
+                    text.toString()
+                  );
+                }
+              )
+          )
+      );
+  }
+
+  private <M extends Model> CompletableFuture<Response> image(
+    SolverPool<M> pool,
+    int seed,
+    long deadline
+  ) {
+    // A miss builds a model, so even acquiring happens on the workers and
+    // counts against the deadline.
+    return this.async(pool::acquire)
+      .thenCompose(
+        model -> model
+            .generate(seed, deadline - System.nanoTime(), TimeUnit.NANOSECONDS, this.workers)
+            .thenApply(
+              generation -> {
+                switch (generation.status) {
+                  case DONE:
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    try {
+                      ImageIO.write(model.graphics(), "png", png);
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                    return new Response(200, "image/png", png.toByteArray(), "miss");
+                  case CONTRADICTION:
+                    return Response.CONTRADICTION;
+                  default:
+                    return Response.TIMEOUT;
+                }
+              }
+            )
+            .whenComplete((response, error) -> pool.release(model))
+      );
+  }
+
+  /**
+   * The pool of models for key, made if there is none.
+   * @param entries Output cells times patterns of one model.
+   */
+  @SuppressWarnings("unchecked")
+  private <M extends Model> SolverPool<M> pool(String key, long entries, Supplier<M> factory) {
+    int capacity = this.workers.getMaximumPoolSize();
+    return (SolverPool<M>) this.pools.computeIfAbsent(
+        key,
+        k -> new Pool(new SolverPool<M>(factory, capacity), entries * capacity)
+      )
+      .models;
+  }
+
+  /** Compiled rules from the cache, or compiled once on a worker. */
+  @SuppressWarnings("unchecked")
+  private <R> CompletableFuture<Rules<R>> rules(String key, Callable<Rules<R>> compile) {
+    Rules<?> cached = this.rules.get(key);
+    if (cached != null) return CompletableFuture.completedFuture((Rules<R>) cached);
+
+    return this.once(
+        key,
+        () -> this.async(
+            () -> {
+              try {
+                return compile.call();
+              } catch (Exception e) {
+                throw new CompletionException(e);
+              }
+            }
+          )
+          .thenApply(
+            rules -> {
+              this.rules.put(key, rules);
+              return rules;
+            }
+          )
+      );
+  }
+
+  /** A cached response, or the result of solve shared by identical requests. */
+  private CompletableFuture<Response> result(
+    Key key,
+    Supplier<CompletableFuture<Response>> solve
+  ) {
+    Response cached = this.results.get(key);
+    if (cached != null) {
+      this.hits.incrementAndGet();
+      return CompletableFuture.completedFuture(cached.as("hit"));
+    }
+
+    boolean[] leader = { false };
+    CompletableFuture<Response> result =
+      this.once(
+          key,
+          () -> {
+            leader[0] = true;
+            // The previous flight may have finished since the lookup above.
+            Response done = this.results.get(key);
+            if (done != null) return CompletableFuture.completedFuture(done);
+
+            this.misses.incrementAndGet();
+            return solve
+              .get()
+              .thenApply(
+                response -> {
+                  // Timeouts depend on load, everything else on the key.
+                  if (response.code != 504) this.results.put(key, response);
+                  return response;
+                }
+              );
+          }
+        );
+    if (leader[0]) return result;
+
+    this.shared.incrementAndGet();
+    return result.thenApply(response -> response.as("shared"));
+  }
+
+  /** Run start unless a run for key is in progress, in which case join it. */
+  @SuppressWarnings("unchecked")
+  private <V> CompletableFuture<V> once(
+    Object key,
+    Supplier<CompletableFuture<V>> start
+  ) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<?> running = this.flights.putIfAbsent(key, flight);
+    if (running != null) return (CompletableFuture<V>) running;
+
+    CompletableFuture<V> started;
+    try {
+      started = start.get();
+    } catch (RuntimeException e) {
+      started = new CompletableFuture<>();
+      started.completeExceptionally(e);
+    }
+    started.whenComplete(
+      (value, error) -> {
+        this.flights.remove(key, flight);
+        if (error != null) flight.completeExceptionally(error); else flight.complete(
+          value
+        );
+      }
+    );
+    return flight;
+  }
+
+  private <V> CompletableFuture<V> async(Supplier<V> task) {
+    try {
+      return CompletableFuture.supplyAsync(task, this.workers);
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<V> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  private void route(
+    String path,
+    Function<Map<String, String>, CompletableFuture<Response>> handler
+  ) {
+    this.server.createContext(
+        path,
+        exchange -> {
+          CompletableFuture<Response> response;
+          try {
+            if (!"GET".equals(exchange.getRequestMethod())) throw new IllegalArgumentException(
+              "Only GET is supported"
+            );
+            response =
+              handler.apply(
+                GenerationServer.query(exchange.getRequestURI().getRawQuery())
+              );
+          } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+          }
+
+          response.whenComplete(
+            (result, error) -> GenerationServer.send(
+              exchange,
+              error == null ? result : this.failure(error)
+            )
+          );
+        }
+      );
+  }
+
+  private Response failure(Throwable error) {
+    while (
+      (error instanceof CompletionException ||
+        error instanceof ExecutionException ||
+        error instanceof UncheckedIOException) &&
+      error.getCause() != null
+    ) error = error.getCause();
+
+    if (error instanceof RejectedExecutionException) {
+      this.rejected.incrementAndGet();
+      return Response.text(503, "Too many requests\n");
+    }
+    if (
+      error instanceof NoSuchFileException ||
+      error instanceof FileNotFoundException
+    ) return Response.text(404, "No such sample\n");
+    if (error instanceof IllegalArgumentException) return Response.text(
+      400,
+      error.getMessage() + "\n"
+    );
+    return Response.text(500, error + "\n");
+  }
+
+  private static void send(HttpExchange exchange, Response response) {
+    try {
+      exchange.getResponseHeaders().set("Content-Type", response.type);
+      exchange.getResponseHeaders().set("X-Cache", response.cache);
+      exchange.sendResponseHeaders(response.code, response.body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response.body);
+      }
+    } catch (IOException e) {
+      // The client went away.
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Path sample(Map<String, String> query) {
+    String name = query.get("sample");
+    if (name == null) throw new IllegalArgumentException("Missing sample");
+
+    Path path = this.samples.resolve(name).normalize();
+    if (!path.startsWith(this.samples)) throw new IllegalArgumentException(
+      "Sample outside of the sample directory"
+    );
+    if (!Files.exists(path)) throw new UncheckedIOException(
+      new NoSuchFileException(name)
+    );
+    return path;
+  }
+
+  private static Map<String, String> query(String raw) {
+    Map<String, String> result = new HashMap<String, String>();
+    if (raw == null) return result;
+
+    try {
+      for (String pair : raw.split("&")) {
+        if (pair.isEmpty()) continue;
+        int eq = pair.indexOf('=');
+        String key = eq < 0 ? pair : pair.substring(0, eq);
+        String value = eq < 0 ? "" : pair.substring(eq + 1);
+        result.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return result;
+  }
+
+  private static int integer(Map<String, String> query, String name, int fallback) {
+    String value = query.get(name);
+    if (value == null) return fallback;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad " + name + ": " + value);
+    }
+  }
+
+  private static int size(Map<String, String> query, String name, int fallback) {
+    int value = GenerationServer.integer(query, name, fallback);
+    if (value <= 0) throw new IllegalArgumentException(name + " must be positive");
+    return value;
+  }
+
+  private void area(int width, int height) {
+    if ((long) width * height > this.maxCells) throw new IllegalArgumentException(
+      "Output larger than " + this.maxCells + " cells"
+    );
+  }
+
+  private static boolean bool(Map<String, String> query, String name, boolean fallback) {
+    String value = query.get(name);
+    return value == null ? fallback : Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Serve the samples in a directory until killed.
+   * Arguments: [port [sample directory [threads]]].
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+    Path samples = Paths.get(args.length > 1 ? args[1] : ".");
+    int threads = args.length > 2
+      ? Integer.parseInt(args[2])
+      : Runtime.getRuntime().availableProcessors();
+
+    GenerationServer server = new GenerationServer(
+      samples,
+      threads,
+      16 * threads,
+      1 << 22,
+      64,
+      256L << 20,
+      1L << 28,
+      10,
+      TimeUnit.SECONDS
+    );
+    System.out.println("Listening on " + server.start(new InetSocketAddress(port)));
+  }
+
+  private static final class Rules<R> {
+    final R rules;
+    final long hash;
+
+    Rules(R rules, long hash) {
+      this.rules = rules;
+      this.hash = hash;
+    }
+  }
+
+  private static final class Pool {
+    final SolverPool<?> models;
+    /** Output cells times patterns of the models the pool may keep. */
+    final long weight;
+
+    Pool(SolverPool<?> models, long weight) {
+      this.models = models;
+      this.weight = weight;
+    }
+  }
+
+  private static final class Key {
+    final String kind;
+    final long rules;
+    final int width, height, seed;
+    final String options;
+
+    Key(String kind, long rules, int width, int height, int seed, String options) {
+      this.kind = kind;
+      this.rules = rules;
+      this.width = width;
+      this.height = height;
+      this.seed = seed;
+      this.options = options;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return (
+        this.rules == k.rules &&
+        this.width == k.width &&
+        this.height == k.height &&
+        this.seed == k.seed &&
+        this.kind.equals(k.kind) &&
+        this.options.equals(k.options)
+      );
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.kind, this.rules, this.width, this.height, this.seed, this.options);
+    }
+  }
+
+  private static final class Response {
+    static final Response CONTRADICTION = Response.text(409, "Contradiction\n");
+    static final Response TIMEOUT = Response.text(504, "Timed out\n");
+
+    final int code;
+    final String type;
+    final byte[] body;
+    final String cache;
+
+    Response(int code, String type, byte[] body, String cache) {
+      this.code = code;
+      this.type = type;
+      this.body = body;
+      this.cache = cache;
+    }
+
+    static Response text(int code, String text) {
+      return new Response(
+        code,
+        "text/plain; charset=utf-8",
+        text.getBytes(StandardCharsets.UTF_8),
+        "miss"
+      );
+    }
+
+    Response as(String cache) {
+      return new Response(this.code, this.type, this.body, cache);
+    }
+  }
+
+  /** Access ordered map evicting the eldest entries above a total weight. */
+  private static final class Lru<K, V> {
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+    private long weight;
+
+    Lru(long capacity, ToLongFunction<V> weigher) {
+      this.capacity = capacity;
+      this.weigher = weigher;
+    }
+
+    synchronized V get(K key) {
+      return this.map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+      V old = this.map.put(key, value);
+      this.weight += this.weigher.applyAsLong(value);
+      if (old != null) this.weight -= this.weigher.applyAsLong(old);
+
+      Iterator<V> eldest = this.map.values().iterator();
+      while (this.weight > this.capacity && eldest.hasNext()) {
+        this.weight -= this.weigher.applyAsLong(eldest.next());
+        eldest.remove();
+      }
+    }
+
+    /** The value for key, or a new one from make if there is none. */
+    synchronized V computeIfAbsent(K key, Function<K, V> make) {
+      V value = this.map.get(key);
+      if (value != null) return value;
+
+      value = make.apply(key);
+      this.put(key, value);
+      return value;
+    }
+
+    synchronized int size() {
+      return this.map.size();
+    }
+
+    synchronized long weight() {
+      return this.weight;
+    }
+  }
+}
@@ -3,20 +3,17 @@ package com.github.sjcasey21.wavefunctioncollapse;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Main {
     public static void main(String[] args) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get("input.txt"));
-        int inputHeight = lines.size();
-        int inputWidth = lines.get(0).length();
-        char[][] input = new char[inputHeight][inputWidth];
-
-        for (int y = 0; y < inputHeight; y++) {
-            input[y] = lines.get(y).toCharArray();
-        }
+        // Input files, learned from together
+        List<Path> inputs = new ArrayList<>();
+        for (String arg : args) inputs.add(Paths.get(arg));
+        if (inputs.isEmpty()) inputs.add(Paths.get("input.txt"));
 
         // Choose tile size here (e.g. 2x2, 1x1, 1x5, etc.)
         int chunkWidth = 2;
@@ -27,9 +24,10 @@ public class Main {
         //int outputHeight = inputHeight;
 		int outputWidth = 24;
 		int outputHeight = 9;
-		System.out.println("Input dimensions: " + inputWidth + "x" + inputHeight);
+		System.out.println("Input files: " + inputs);
 
-        TextWFCModel model = new TextWFCModel(input, outputWidth, outputHeight, chunkWidth, chunkHeight);
+        TextCorpus corpus = TextCorpus.load(inputs, chunkWidth, chunkHeight);
+        TextWFCModel model = new TextWFCModel(corpus, outputWidth, outputHeight, true);
         boolean success = model.run();
         System.out.println("Success: " + success);
 
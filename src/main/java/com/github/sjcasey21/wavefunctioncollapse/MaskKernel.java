@@ -0,0 +1,65 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+/**
+ * Word-parallel operations on runs of {@code long} bitset words, used by the
+ * mask propagator. The scalar kernel works everywhere; on JDK 16+ a kernel
+ * built on {@code jdk.incubator.vector} is used when that module is present
+ * (run with {@code --add-modules jdk.incubator.vector}) and the CPU has wide
+ * enough vector registers.
+ */
+abstract class MaskKernel {
+  static final MaskKernel SCALAR = new MaskKernel() {
+    @Override
+    void or(long[] dst, int dstOffset, long[] src, int srcOffset, int n) {
+      for (int w = 0; w < n; w++) dst[dstOffset + w] |= src[srcOffset + w];
+    }
+
+    @Override
+    boolean intersects(long[] a, int aOffset, long[] b, int bOffset, int n) {
+      for (int w = 0; w < n; w++) if (
+        (a[aOffset + w] & b[bOffset + w]) != 0
+      ) return true;
+      return false;
+    }
+
+    @Override
+    int lanes() {
+      return 1;
+    }
+  };
+
+  private static final MaskKernel VECTOR = MaskKernel.loadVector();
+
+  /** dst[dstOffset..+n] |= src[srcOffset..+n] */
+  abstract void or(long[] dst, int dstOffset, long[] src, int srcOffset, int n);
+
+  /** Whether a[aOffset..+n] and b[bOffset..+n] share a set bit. */
+  abstract boolean intersects(long[] a, int aOffset, long[] b, int bOffset, int n);
+
+  /** Number of words processed per instruction. */
+  abstract int lanes();
+
+  /**
+   * The vector kernel if it is available and at least one vector fits in a
+   * cell's W words, otherwise null.
+   */
+  static MaskKernel vector(int W) {
+    return VECTOR != null && VECTOR.lanes() > 1 && W >= VECTOR.lanes()
+      ? VECTOR
+      : null;
+  }
+
+  private static MaskKernel loadVector() {
+    try {
+      return (MaskKernel) Class
+        .forName(MaskKernel.class.getPackage().getName() + ".VectorMaskKernel")
+        .getDeclaredConstructor()
+        .newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // Not built for JDK 16+, or jdk.incubator.vector was not added.
+      return null;
+    }
+  }
+}
@@ -0,0 +1,1085 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Solver core shared by all models. Cells are addressed by the flat index
+ * {@code x + y * FMX + z * FMX * FMY}; 2D models have a depth of 1 and use
+ * the first 4 directions, 3D models use all 6.
+ *
+ * The wave is a bitset of {@code W} words per cell. Propagation either keeps
+ * per-direction compatibility counters ({@code T * D} per cell, pattern
+ * major, each as wide as the longest propagator row needs) or
+ * recomputes the supported patterns of a neighbour from per-pattern bit
+ * masks. Masks are used when the counters would not fit, or when the
+ * propagator rows are long enough that handling a whole row a few words
+ * (or vectors, see {@link MaskKernel}) at a time beats one decrement per
+ * entry.
+ *
+ * The wave and the counters live in a {@link Storage}, on the heap unless
+ * {@link #setStorage} chose otherwise.
+ */
+public abstract class Model implements CellSelector.Wave {
+  /** Largest number of compatibility counters kept before using masks. */
+  static final long COUNTER_LIMIT = 1L << 28;
+  /**
+   * Masks are preferred once the average propagator row holds this many
+   * entries per word operation of the mask kernel (W / lanes).
+   */
+  static final int MASK_DENSITY = 4;
+
+  // The limits this model chooses its propagation with. Tests change them
+  // before the first run to force counters or masks, or the scalar kernel.
+  long counterLimit = Model.COUNTER_LIMIT;
+  int maskDensity = Model.MASK_DENSITY;
+  boolean vectorize = true;
+
+  protected Storage.Longs wave;
+  protected int W;
+
+  protected int[][][] propagator;
+  Storage.Ints compatible;
+  long[] masks;
+  Storage.Longs removed;
+  Storage storage = Storage.heap();
+  MaskKernel kernel;
+  protected int[] observed;
+
+  Storage.Ints stack;
+  int stacksize;
+  long[] pending;
+
+  CellSelector selector = CellSelector.entropyScan();
+  boolean contradiction;
+  /** Set while generate() runs; true once the generation should stop. */
+  BooleanSupplier stop;
+
+  protected Random random;
+  protected int FMX, FMY, FMZ, T;
+  protected boolean periodic;
+
+  protected Double[] weights;
+  double[] weightValues, weightLogWeights;
+
+  /**
+   * Set when the rules were reduced: T, weights and propagator then count
+   * classes of the model's patterns, and observed holds pattern ids.
+   */
+  Reduction reduction;
+
+  /** A cell right after Clear(): its wave words and its counters. */
+  long[] cell;
+  int[] cellCounters;
+  /** The whole state right after Clear(), if constrain() banned anything. */
+  Template pristine;
+  boolean pristineContradiction;
+  /** Set when constrain() bans something but no template is kept. */
+  boolean constrained;
+
+  /**
+   * Cells whose wave changed since the last drainDirty(), as a bitset and in
+   * the order they first changed; null until a {@link ProgressiveRenderer}
+   * asks for them. While allDirty is set every cell counts as changed and
+   * nothing is recorded.
+   */
+  long[] dirty;
+  int[] dirtyCells;
+  int dirtyCount;
+  boolean allDirty;
+
+  int[] sumsOfOnes;
+  double sumOfWeights, sumOfWeightLogWeights, startingEntropy;
+  double[] sumsOfWeights, sumsOfWeightLogWeights, entropies;
+
+  protected Model(int width, int height) {
+    this(width, height, 1);
+  }
+
+  protected Model(int width, int height, int depth) {
+    this.FMX = width;
+    this.FMY = height;
+    this.FMZ = depth;
+  }
+
+  void init() {
+    long words = (long) this.FMX * this.FMY * this.FMZ * ((this.T + 63) >>> 6);
+    if (words > Integer.MAX_VALUE) throw new IllegalArgumentException(
+      "Output too large: " + words + " words of wave"
+    );
+
+    int cells = this.FMX * this.FMY * this.FMZ;
+    int D = this.propagator.length;
+
+    this.W = (this.T + 63) >>> 6;
+    this.wave = this.storage.longs(cells * this.W);
+
+    MaskKernel vector = this.vectorize ? MaskKernel.vector(this.W) : null;
+    this.kernel = vector != null ? vector : MaskKernel.SCALAR;
+
+    long entries = 0;
+    int longest = 0;
+    for (int d = 0; d < D; d++) for (int t = 0; t < this.T; t++) {
+      entries += this.propagator[d][t].length;
+      longest = Math.max(longest, this.propagator[d][t].length);
+    }
+    boolean dense =
+      entries * this.kernel.lanes() >=
+      (long) this.maskDensity * D * this.T * this.W;
+
+    if ((long) cells * this.T * D <= this.counterLimit && !dense) {
+      this.compatible = this.storage.counters(cells * this.T * D, longest);
+      this.masks = null;
+      this.removed = null;
+      this.pending = null;
+      this.stack = this.storage.ints(2 * cells * this.T);
+    } else {
+      this.compatible = null;
+      this.masks = new long[D * this.T * this.W];
+      for (int d = 0; d < D; d++) for (int t = 0; t < this.T; t++) {
+        int base = (d * this.T + t) * this.W;
+        for (int t2 : this.propagator[d][t]) this.masks[base + (t2 >>> 6)] |=
+          1L << t2;
+      }
+      this.removed = this.storage.longs(cells * this.W);
+      this.pending = new long[(cells + 63) >>> 6];
+      this.stack = this.storage.ints(cells);
+    }
+    this.stacksize = 0;
+
+    this.weightValues = new double[this.T];
+    this.weightLogWeights = new double[this.T];
+    this.sumOfWeights = 0;
+    this.sumOfWeightLogWeights = 0;
+
+    for (int t = 0; t < this.T; t++) {
+      this.weightValues[t] = this.weights[t];
+      this.weightLogWeights[t] = this.weights[t] * Math.log(this.weights[t]);
+      this.sumOfWeights += this.weights[t];
+      this.sumOfWeightLogWeights += this.weightLogWeights[t];
+    }
+
+    this.startingEntropy =
+      Math.log(this.sumOfWeights) -
+      this.sumOfWeightLogWeights /
+      this.sumOfWeights;
+
+    this.sumsOfOnes = new int[cells];
+    this.sumsOfWeights = new double[cells];
+    this.sumsOfWeightLogWeights = new double[cells];
+    this.entropies = new double[cells];
+  }
+
+  /**
+   * Drop the patterns that can never be placed and merge the ones that
+   * propagate alike, see {@link Reduction}. Call from the constructor, after
+   * T, weights and propagator are set and before the first run.
+   * @param keep Pattern that must not be dropped or merged, or -1.
+   * @param extent Number of observable cells along each direction.
+   */
+  void reduce(int keep, int[] extent) {
+    double[] weights = new double[this.T];
+    for (int t = 0; t < this.T; t++) weights[t] = this.weights[t];
+
+    this.reduction =
+      Reduction.of(weights, this.propagator, this.periodic, extent, keep);
+    if (this.reduction == null) return;
+
+    this.T = this.reduction.T;
+    this.weights = new Double[this.T];
+    for (int t = 0; t < this.T; t++) this.weights[t] = this.reduction.weights[t];
+    this.propagator = this.reduction.propagator;
+  }
+
+  /** The patterns behind wave index t. */
+  int[] members(int t) {
+    return this.reduction == null ? new int[] { t } : this.reduction.members[t];
+  }
+
+  /** Whether pattern t is still possible in cell i. */
+  protected boolean possible(int i, int t) {
+    return (this.wave.get(i * this.W + (t >>> 6)) & (1L << t)) != 0;
+  }
+
+  /**
+   * Choose where the wave and the counters are kept, see {@link Storage}.
+   * Must be called before the first run.
+   */
+  public void setStorage(Storage storage) {
+    if (this.wave != null) throw new IllegalStateException(
+      "Storage must be chosen before the first run"
+    );
+    this.storage = storage;
+  }
+
+  /**
+   * Choose how cells are picked for observation, see {@link CellSelector}.
+   * Takes effect with the next run() or restore().
+   */
+  public void setSelector(CellSelector selector) {
+    this.selector = selector;
+  }
+
+  @Override
+  public int width() {
+    return this.FMX;
+  }
+
+  @Override
+  public int height() {
+    return this.FMY;
+  }
+
+  @Override
+  public int depth() {
+    return this.FMZ;
+  }
+
+  @Override
+  public boolean observable(int i) {
+    return !this.onBoundary(this.xOf(i), this.yOf(i), this.zOf(i));
+  }
+
+  @Override
+  public int remaining(int i) {
+    return this.sumsOfOnes[i];
+  }
+
+  @Override
+  public double entropy(int i) {
+    return this.entropies[i];
+  }
+
+  @Override
+  public Random random() {
+    return this.random;
+  }
+
+  Boolean observe() {
+    if (this.contradiction) return false;
+
+    int cells = this.sumsOfOnes.length;
+    int argmin = this.selector.next();
+
+    if (argmin == -1) {
+      this.observed = new int[cells];
+      for (int i = 0; i < cells; i++) for (int t = 0; t < this.T; t++) if (
+        this.possible(i, t)
+      ) {
+        this.observed[i] = this.reduction == null
+          ? t
+          : this.reduction.member(t, this.random);
+        break;
+      }
+      this.markAllDirty();
+      return true;
+    }
+
+    int r = this.choose(argmin, this.random.nextDouble());
+    this.collapse(argmin, r);
+
+    return null;
+  }
+
+  /**
+   * Pick one of the patterns still possible in cell i with probability
+   * proportional to its weight.
+   * @param r Uniform random number in [0, 1).
+   */
+  int choose(int i, double r) {
+    double x = r * this.sumsOfWeights[i];
+    int last = -1;
+
+    for (int w = 0; w < this.W; w++) {
+      long bits = this.wave.get(i * this.W + w);
+      while (bits != 0) {
+        int t = (w << 6) + Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+
+        x -= this.weightValues[t];
+        if (x <= 0) return t;
+        last = t;
+      }
+    }
+
+    // Only reached through rounding in the running sum.
+    return last;
+  }
+
+  /**
+   * Ban every pattern of cell i except t. Works a word at a time and
+   * updates the entropy caches once, instead of banning one by one. If t
+   * is no longer possible the cell is emptied, as banning everything would,
+   * which is a contradiction when the cell is observable.
+   */
+  protected void collapse(int i, int t) {
+    if (!this.possible(i, t)) {
+      for (int t2 = 0; t2 < this.T; t2++) this.ban(i, t2);
+      return;
+    }
+
+    int base = i * this.W;
+
+    for (int w = 0; w < this.W; w++) {
+      long keep = w == t >>> 6 ? 1L << t : 0;
+      long word = this.wave.get(base + w);
+      long bits = word & ~keep;
+      if (bits == 0) continue;
+      this.wave.set(base + w, word & keep);
+
+      if (this.compatible != null) {
+        // Counters of the banned patterns are left as they are: ban()
+        // ignores patterns that are already gone.
+        while (bits != 0) {
+          this.stack.set(2 * this.stacksize, i);
+          this.stack.set(
+            2 * this.stacksize + 1,
+            (w << 6) + Long.numberOfTrailingZeros(bits)
+          );
+          this.stacksize++;
+          bits &= bits - 1;
+        }
+      } else {
+        this.removed.set(base + w, this.removed.get(base + w) | bits);
+        if ((this.pending[i >>> 6] & (1L << i)) == 0) {
+          this.pending[i >>> 6] |= 1L << i;
+          this.stack.set(this.stacksize, i);
+          this.stacksize++;
+        }
+      }
+    }
+
+    this.sumsOfOnes[i] = 1;
+    this.sumsOfWeights[i] = this.weightValues[t];
+    this.sumsOfWeightLogWeights[i] = this.weightLogWeights[t];
+    this.entropies[i] = 0;
+    this.selector.changed(i);
+    if (this.dirty != null) this.markDirty(i);
+  }
+
+  protected void propagate() {
+    if (this.compatible != null) this.propagateCounters(); else this.propagateMasks();
+  }
+
+  private void propagateCounters() {
+    int D = this.propagator.length;
+
+    for (int steps = 1; this.stacksize > 0; steps++) {
+      if ((steps & 0xfff) == 0 && this.stopped()) return;
+      this.stacksize--;
+      int i1 = this.stack.get(2 * this.stacksize);
+      int t1 = this.stack.get(2 * this.stacksize + 1);
+
+      for (int d = 0; d < D; d++) {
+        int i2 = this.neighbor(i1, d);
+        if (i2 < 0) continue;
+
+        int[] p = this.propagator[d][t1];
+        int base = i2 * this.T * D + d;
+
+        for (int l = 0; l < p.length; l++) {
+          int t2 = p[l];
+          int c = base + t2 * D;
+
+          if (this.compatible.decrement(c) == 0) this.ban(i2, t2);
+        }
+      }
+    }
+  }
+
+  // Without counters, a cell on the stack carries the patterns it lost since
+  // it was pushed. Only the neighbour's patterns that those used to support
+  // can have lost their support; each of them is kept if this cell still
+  // holds one of the patterns in masks[opposite[d]][t2]. When there are more
+  // such candidates than patterns left in this cell, it is cheaper to
+  // intersect the neighbour with the union of masks[d][t1] over the
+  // remaining t1 instead. The words of the popped cell are copied out first
+  // so the mask kernel works on plain arrays whatever the storage.
+  private void propagateMasks() {
+    int D = this.propagator.length;
+    int W = this.W;
+    long[] union = new long[W], here = new long[W], gone = new long[W];
+
+    for (int steps = 1; this.stacksize > 0; steps++) {
+      if ((steps & 0xfff) == 0 && this.stopped()) return;
+      this.stacksize--;
+      int i1 = this.stack.get(this.stacksize);
+      this.pending[i1 >>> 6] &= ~(1L << i1);
+      int remaining = this.sumsOfOnes[i1];
+      if (remaining == 0) continue;
+
+      int lost = 0;
+      for (int w = 0; w < W; w++) {
+        here[w] = this.wave.get(i1 * W + w);
+        gone[w] = this.removed.get(i1 * W + w);
+        lost += Long.bitCount(gone[w]);
+      }
+
+      for (int d = 0; d < D; d++) {
+        int i2 = this.neighbor(i1, d);
+        if (i2 < 0 || this.sumsOfOnes[i2] == 0) continue;
+
+        int candidates = Integer.MAX_VALUE;
+        if (lost < remaining) {
+          this.union(union, gone, d);
+          candidates = 0;
+          for (int w = 0; w < W; w++) candidates +=
+            Long.bitCount(union[w] & this.wave.get(i2 * W + w));
+        }
+
+        if (candidates <= remaining) {
+          int o = Model.opposite[d];
+          for (int w = 0; w < W; w++) {
+            long bits = union[w] & this.wave.get(i2 * W + w);
+            while (bits != 0) {
+              int t2 = (w << 6) + Long.numberOfTrailingZeros(bits);
+              bits &= bits - 1;
+
+              if (
+                !this.kernel.intersects(
+                    here,
+                    0,
+                    this.masks,
+                    (o * this.T + t2) * W,
+                    W
+                  )
+              ) this.ban(i2, t2);
+            }
+          }
+        } else {
+          this.union(union, here, d);
+          for (int w = 0; w < W; w++) {
+            long bits = ~union[w] & this.wave.get(i2 * W + w);
+            while (bits != 0) {
+              int t2 = (w << 6) + Long.numberOfTrailingZeros(bits);
+              bits &= bits - 1;
+              this.ban(i2, t2);
+            }
+          }
+        }
+      }
+
+      this.removed.fill(i1 * W, (i1 + 1) * W, 0);
+    }
+  }
+
+  /** union = OR of masks[d][t] over the patterns t set in bits. */
+  private void union(long[] union, long[] bits, int d) {
+    Arrays.fill(union, 0);
+    for (int w = 0; w < this.W; w++) {
+      long word = bits[w];
+      while (word != 0) {
+        int t = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        this.kernel.or(union, 0, this.masks, (d * this.T + t) * this.W, this.W);
+      }
+    }
+  }
+
+  /**
+   * Index of the cell next to cell i in direction d, or -1 if that
+   * neighbour lies on the boundary.
+   */
+  int neighbor(int i, int d) {
+    int x = this.xOf(i) + Model.DX[d];
+    int y = this.yOf(i) + Model.DY[d];
+    int z = this.zOf(i) + Model.DZ[d];
+    if (this.onBoundary(x, y, z)) return -1;
+
+    if (x < 0) x += this.FMX; else if (x >= this.FMX) x -= this.FMX;
+    if (y < 0) y += this.FMY; else if (y >= this.FMY) y -= this.FMY;
+    if (z < 0) z += this.FMZ; else if (z >= this.FMZ) z -= this.FMZ;
+
+    return x + (y + z * this.FMY) * this.FMX;
+  }
+
+  int xOf(int i) {
+    return i % this.FMX;
+  }
+
+  int yOf(int i) {
+    return (i / this.FMX) % this.FMY;
+  }
+
+  int zOf(int i) {
+    return i / (this.FMX * this.FMY);
+  }
+
+  /** Whether every cell has been observed and the output is complete. */
+  public boolean finished() {
+    return this.observed != null;
+  }
+
+  /**
+   * Execute a complete new generation.
+   * @param seed Seed for the generation's random choices.
+   * @param limit Maximum number of observations, 0 for no limit.
+   * @return Whether the generation finished without a contradiction.
+   */
+  public boolean run(int seed, int limit) {
+    if (this.wave == null) this.init();
+
+    this.random = new Random(seed);
+    this.Clear();
+
+    return this.step(limit);
+  }
+
+  /**
+   * Execute a complete new generation on executor, giving up once timeout
+   * has passed. The deadline, and whether the returned future was
+   * cancelled, are checked between observations and every few thousand
+   * propagation steps. The model must not be used for anything else until
+   * the future completes.
+   * @param seed Seed for the generation's random choices.
+   * @return Completes with this model as the state. After DONE the output is
+   * read from it as usual; after TIMEOUT or CONTRADICTION it holds the wave
+   * where the generation stopped, ready for snapshot() or resume(). A
+   * generation still waiting for a thread at its deadline completes with
+   * TIMEOUT right then and leaves the model untouched.
+   */
+  public CompletableFuture<Generation<Model>> generate(
+    int seed,
+    long timeout,
+    TimeUnit unit,
+    Executor executor
+  ) {
+    return Generation.start(
+      timeout,
+      unit,
+      executor,
+      this,
+      stop -> {
+        if (stop.getAsBoolean()) return new Generation<>(
+          Generation.Status.TIMEOUT,
+          this
+        );
+
+        this.stop = stop;
+        try {
+          if (this.wave == null) this.init();
+          this.random = new Random(seed);
+          this.Clear();
+
+          return new Generation<>(Generation.status(this.step(0)), this);
+        } finally {
+          this.stop = null;
+        }
+      }
+    );
+  }
+
+  /**
+   * Continue a generation from the current state, e.g. after
+   * {@link #restore(Snapshot)}.
+   * @param limit Maximum number of further observations, 0 for no limit.
+   * @return Whether the generation finished without a contradiction.
+   */
+  public boolean resume(int limit) {
+    if (this.random == null) throw new IllegalStateException(
+      "Nothing to resume: run() or restore() first"
+    );
+
+    this.propagate();
+    return this.step(limit);
+  }
+
+  /**
+   * Observe and propagate up to limit times.
+   * @return Whether the generation finished without a contradiction, or
+   * null if it was stopped first.
+   */
+  Boolean step(int limit) {
+    for (int l = 0; l < limit || limit == 0; l++) {
+      if (this.stopped()) return null;
+      Boolean result = this.observe();
+      if (result != null) return (boolean) result;
+      this.propagate();
+    }
+
+    return true;
+  }
+
+  private boolean stopped() {
+    return this.stop != null && this.stop.getAsBoolean();
+  }
+
+  protected void ban(int i, int t) {
+    int w = i * this.W + (t >>> 6);
+    long bit = 1L << t;
+    long word = this.wave.get(w);
+    if ((word & bit) == 0) return;
+    this.wave.set(w, word & ~bit);
+
+    if (this.compatible != null) {
+      int D = this.propagator.length;
+      int c = (i * this.T + t) * D;
+      this.compatible.fill(c, c + D, 0);
+
+      this.stack.set(2 * this.stacksize, i);
+      this.stack.set(2 * this.stacksize + 1, t);
+      this.stacksize++;
+    } else {
+      this.removed.set(w, this.removed.get(w) | bit);
+      if ((this.pending[i >>> 6] & (1L << i)) == 0) {
+        this.pending[i >>> 6] |= 1L << i;
+        this.stack.set(this.stacksize, i);
+        this.stacksize++;
+      }
+    }
+
+    this.sumsOfOnes[i] -= 1;
+    this.sumsOfWeights[i] -= this.weightValues[t];
+    this.sumsOfWeightLogWeights[i] -= this.weightLogWeights[t];
+
+    double sum = this.sumsOfWeights[i];
+    this.entropies[i] = Math.log(sum) - this.sumsOfWeightLogWeights[i] / sum;
+
+    if (this.sumsOfOnes[i] == 0 && this.observable(i)) this.contradiction = true;
+    this.selector.changed(i);
+    if (this.dirty != null) this.markDirty(i);
+  }
+
+  /** Start recording which cells change, for {@link ProgressiveRenderer}. */
+  void trackDirty() {
+    if (this.dirty != null) return;
+    int cells = this.FMX * this.FMY * this.FMZ;
+    this.dirty = new long[(cells + 63) >>> 6];
+    this.dirtyCells = new int[cells];
+    this.dirtyCount = 0;
+    this.allDirty = true;
+  }
+
+  private void markDirty(int i) {
+    if (this.allDirty || (this.dirty[i >>> 6] & (1L << i)) != 0) return;
+    this.dirty[i >>> 6] |= 1L << i;
+    this.dirtyCells[this.dirtyCount++] = i;
+  }
+
+  private void markAllDirty() {
+    if (this.dirty == null) return;
+    for (int k = 0; k < this.dirtyCount; k++) {
+      int i = this.dirtyCells[k];
+      this.dirty[i >>> 6] &= ~(1L << i);
+    }
+    this.dirtyCount = 0;
+    this.allDirty = true;
+  }
+
+  /**
+   * Hand every cell whose wave changed since the last call to visit, and
+   * forget them.
+   * @return False, having visited nothing, if every cell may have changed,
+   * e.g. after Clear() or restore().
+   */
+  boolean drainDirty(IntConsumer visit) {
+    if (this.allDirty) {
+      this.allDirty = false;
+      return false;
+    }
+
+    for (int k = 0; k < this.dirtyCount; k++) {
+      int i = this.dirtyCells[k];
+      this.dirty[i >>> 6] &= ~(1L << i);
+      visit.accept(i);
+    }
+    this.dirtyCount = 0;
+    return true;
+  }
+
+  /**
+   * Reset the solver to the state every generation starts from. That state
+   * is built on the first call, by filling the wave and applying
+   * {@link #constrain()}. If the constraints banned anything it is kept as a
+   * template and later resets copy it back in bulk; otherwise they fill
+   * every cell from one cached cell. Models whose storage is not on the heap
+   * keep no template and apply the constraints again instead.
+   */
+  protected void Clear() {
+    if (this.cell == null || this.constrained) this.build(); else if (
+      this.pristine != null
+    ) this.load(this.pristine); else this.fill();
+
+    this.observed = null;
+    this.stacksize = 0;
+    this.contradiction = this.pristineContradiction;
+    this.selector.reset(this);
+    this.markAllDirty();
+  }
+
+  /**
+   * Bans every generation starts with, e.g. a ground row, followed by
+   * propagate(). Runs once per model, with no deadline.
+   */
+  protected void constrain() {}
+
+  private void build() {
+    this.prepare();
+    this.fill();
+
+    // The selector is reset after the template is taken, so that it sees
+    // the same calls (and draws the same random numbers) on every reset.
+    CellSelector selector = this.selector;
+    BooleanSupplier stop = this.stop;
+    this.selector = new CellSelector.EntropyScan();
+    this.stop = null;
+    this.stacksize = 0;
+    this.contradiction = false;
+    try {
+      this.constrain();
+    } finally {
+      this.selector = selector;
+      this.stop = stop;
+    }
+
+    this.pristineContradiction = this.contradiction;
+    for (int i = 0; i < this.sumsOfOnes.length; i++) if (
+      this.sumsOfOnes[i] != this.T
+    ) {
+      if (this.storage.onHeap()) this.pristine = new Template(this); else this.constrained =
+        true;
+      break;
+    }
+  }
+
+  private void prepare() {
+    if (this.cell != null) return;
+    int D = this.propagator.length;
+
+    this.cell = new long[this.W];
+    Arrays.fill(this.cell, -1L);
+    if ((this.T & 63) != 0) this.cell[this.W - 1] = (1L << this.T) - 1;
+
+    if (this.compatible != null) {
+      this.cellCounters = new int[this.T * D];
+      for (int t = 0; t < this.T; t++) for (int d = 0; d < D; d++) this.cellCounters[t *
+        D +
+        d] = this.propagator[Model.opposite[d]][t].length;
+    }
+  }
+
+  private void fill() {
+    int cells = this.sumsOfOnes.length;
+    long[] cell = this.cell;
+    int[] counters = this.cellCounters;
+
+    if (this.compatible == null) {
+      this.removed.fill(0, this.removed.length(), 0);
+      Arrays.fill(this.pending, 0);
+    }
+
+    // One cell is written, then copied in runs of doubling length.
+    this.wave.put(0, cell);
+    for (int n = cell.length; n < cells * cell.length; n *= 2) this.wave.copy(
+        0,
+        n,
+        Math.min(n, cells * cell.length - n)
+      );
+    if (this.compatible != null) {
+      this.compatible.put(0, counters);
+      for (int n = counters.length; n < cells * counters.length; n *= 2) this.compatible.copy(
+          0,
+          n,
+          Math.min(n, cells * counters.length - n)
+        );
+    }
+
+    Arrays.fill(this.sumsOfOnes, this.T);
+    Arrays.fill(this.sumsOfWeights, this.sumOfWeights);
+    Arrays.fill(this.sumsOfWeightLogWeights, this.sumOfWeightLogWeights);
+    Arrays.fill(this.entropies, this.startingEntropy);
+  }
+
+  /**
+   * The template Clear() copies from, or null if there is none. Shared
+   * with other models of the same rules and size by {@link SolverPool}.
+   */
+  Template pristine() {
+    if (this.wave == null) this.init();
+    if (this.cell == null) this.build();
+    return this.pristine;
+  }
+
+  /** Start every generation from a template built by another model. */
+  void adopt(Template pristine) {
+    if (this.wave == null) this.init();
+    if (
+      pristine.FMX != this.FMX ||
+      pristine.FMY != this.FMY ||
+      pristine.FMZ != this.FMZ ||
+      pristine.rules != this.rulesHash() ||
+      (pristine.compatible == null) != (this.compatible == null) ||
+      !this.storage.onHeap()
+    ) throw new IllegalArgumentException(
+      "Template was built for a model with different rules, size or storage"
+    );
+
+    this.prepare();
+    this.pristine = pristine;
+    this.pristineContradiction = pristine.contradiction;
+  }
+
+  /**
+   * Copy the current solver state. Snapshots are independent of the model
+   * and can be restored into it (or into another model built from the same
+   * rules and output size) any number of times.
+   */
+  public Snapshot snapshot() {
+    if (this.wave == null) {
+      this.init();
+      this.Clear();
+    }
+
+    return new Snapshot(
+      this.FMX,
+      this.FMY,
+      this.FMZ,
+      this.T,
+      this.rulesHash(),
+      this.wave.toArray(this.wave.length()),
+      this.compatible == null
+        ? new int[0]
+        : this.compatible.toArray(this.compatible.length()),
+      this.observed == null ? null : this.observed.clone(),
+      this.stack.toArray(
+          this.compatible == null ? this.stacksize : 2 * this.stacksize
+        ),
+      this.sumsOfOnes.clone(),
+      this.sumsOfWeights.clone(),
+      this.sumsOfWeightLogWeights.clone(),
+      this.entropies.clone(),
+      this.selectorState(),
+      Snapshot.saveRandom(this.random == null ? new Random() : this.random)
+    );
+  }
+
+  /**
+   * Write the current solver state to a checkpoint file, the same file as
+   * {@code snapshot().write(path)} but streamed from the model's storage
+   * instead of copied first. Read it back with {@link Snapshot#read}.
+   * @param path File to create or overwrite.
+   */
+  public void checkpoint(Path path) throws IOException {
+    if (this.wave == null) {
+      this.init();
+      this.Clear();
+    }
+
+    Snapshot.write(
+      path,
+      this.FMX,
+      this.FMY,
+      this.FMZ,
+      this.T,
+      this.rulesHash(),
+      this.wave,
+      this.compatible,
+      this.stack,
+      this.compatible == null ? this.stacksize : 2 * this.stacksize,
+      this.observed,
+      this.sumsOfOnes,
+      this.sumsOfWeights,
+      this.sumsOfWeightLogWeights,
+      this.entropies,
+      this.selectorState(),
+      Snapshot.saveRandom(this.random == null ? new Random() : this.random)
+    );
+  }
+
+  /**
+   * Replace the current solver state with a snapshot. Continue the
+   * generation with {@link #resume(int)}.
+   * @param snapshot State taken from a model with the same rules and size.
+   */
+  public void restore(Snapshot snapshot) {
+    this.check(snapshot);
+    if (this.wave == null) this.init();
+    this.checkMode(snapshot);
+
+    this.load(snapshot);
+    this.observed = snapshot.observed == null ? null : snapshot.observed.clone();
+
+    this.stack.put(0, snapshot.stack);
+    if (this.compatible != null) this.stacksize = snapshot.stack.length / 2; else {
+      // The patterns removed from a pending cell are not part of the
+      // snapshot, so treat every missing pattern as recently removed.
+      this.stacksize = snapshot.stack.length;
+      for (int s = 0; s < this.stacksize; s++) {
+        int i = this.stack.get(s);
+        this.pending[i >>> 6] |= 1L << i;
+        for (int w = 0; w < this.W; w++) this.removed.set(
+            i * this.W + w,
+            ~this.wave.get(i * this.W + w)
+          );
+        if ((this.T & 63) != 0) this.removed.set(
+            (i + 1) * this.W - 1,
+            this.removed.get((i + 1) * this.W - 1) & ((1L << this.T) - 1)
+          );
+      }
+    }
+
+    this.random = Snapshot.loadRandom(snapshot.random);
+
+    int cells = this.sumsOfOnes.length;
+    this.contradiction = false;
+    for (int i = 0; i < cells; i++) if (
+      this.sumsOfOnes[i] == 0 && this.observable(i)
+    ) this.contradiction = true;
+    this.selector.restore(this, snapshot.selector);
+    this.markAllDirty();
+  }
+
+  private double[] selectorState() {
+    double[] state = this.selector.save();
+    return state == null ? new double[0] : state;
+  }
+
+  private void check(Snapshot snapshot) {
+    if (
+      snapshot.FMX != this.FMX ||
+      snapshot.FMY != this.FMY ||
+      snapshot.FMZ != this.FMZ ||
+      snapshot.T != this.T ||
+      snapshot.rules != this.rulesHash()
+    ) throw new IllegalArgumentException(
+      "Snapshot was taken from a model with different rules or size"
+    );
+  }
+
+  private void checkMode(Snapshot snapshot) {
+    int counters = this.compatible == null ? 0 : this.compatible.length();
+    if (snapshot.compatible.length != counters) throw new IllegalArgumentException(
+      "Snapshot was taken with a different propagation mode"
+    );
+  }
+
+  private void load(Template template) {
+    this.wave.copyFrom(template.wave);
+    if (this.compatible != null) this.compatible.copyFrom(template.compatible); else {
+      this.removed.fill(0, this.removed.length(), 0);
+      Arrays.fill(this.pending, 0);
+    }
+    this.loadCaches(
+        template.sumsOfOnes,
+        template.sumsOfWeights,
+        template.sumsOfWeightLogWeights,
+        template.entropies
+      );
+  }
+
+  /** Copy the wave, counters and entropy caches of a snapshot in bulk. */
+  private void load(Snapshot snapshot) {
+    this.wave.put(0, snapshot.wave);
+    if (this.compatible != null) this.compatible.put(0, snapshot.compatible); else {
+      this.removed.fill(0, this.removed.length(), 0);
+      Arrays.fill(this.pending, 0);
+    }
+    this.loadCaches(
+        snapshot.sumsOfOnes,
+        snapshot.sumsOfWeights,
+        snapshot.sumsOfWeightLogWeights,
+        snapshot.entropies
+      );
+  }
+
+  private void loadCaches(
+    int[] sumsOfOnes,
+    double[] sumsOfWeights,
+    double[] sumsOfWeightLogWeights,
+    double[] entropies
+  ) {
+    int cells = this.sumsOfOnes.length;
+    System.arraycopy(sumsOfOnes, 0, this.sumsOfOnes, 0, cells);
+    System.arraycopy(sumsOfWeights, 0, this.sumsOfWeights, 0, cells);
+    System.arraycopy(
+      sumsOfWeightLogWeights,
+      0,
+      this.sumsOfWeightLogWeights,
+      0,
+      cells
+    );
+    System.arraycopy(entropies, 0, this.entropies, 0, cells);
+  }
+
+  /**
+   * Fingerprint of the pattern count, weights and propagator, used to check
+   * that a snapshot belongs to this model's rules.
+   */
+  long rulesHash() {
+    return Model.rulesHash(this.weights, this.propagator);
+  }
+
+  static long rulesHash(Double[] weights, int[][][] propagator) {
+    int T = weights.length;
+    long hash = 1125899906842597L;
+    hash = 31 * hash + T;
+    for (int t = 0; t < T; t++) hash =
+      31 * hash + Double.doubleToLongBits(weights[t]);
+    for (int d = 0; d < propagator.length; d++) for (int t = 0; t < T; t++) {
+      int[] p = propagator[d][t];
+      hash = 31 * hash + p.length;
+      for (int l = 0; l < p.length; l++) hash = 31 * hash + p[l];
+    }
+    return hash;
+  }
+
+  /**
+   * State right after Clear(), kept at the width of the model's own
+   * storage so that resets are plain array copies.
+   */
+  static final class Template {
+    final int FMX, FMY, FMZ;
+    final long rules;
+    final Storage.Longs wave;
+    final Storage.Ints compatible;
+    final int[] sumsOfOnes;
+    final double[] sumsOfWeights, sumsOfWeightLogWeights, entropies;
+    final boolean contradiction;
+
+    Template(Model model) {
+      this.FMX = model.FMX;
+      this.FMY = model.FMY;
+      this.FMZ = model.FMZ;
+      this.rules = model.rulesHash();
+      this.wave = model.wave.copy();
+      this.compatible = model.compatible == null ? null : model.compatible.copy();
+      this.sumsOfOnes = model.sumsOfOnes.clone();
+      this.sumsOfWeights = model.sumsOfWeights.clone();
+      this.sumsOfWeightLogWeights = model.sumsOfWeightLogWeights.clone();
+      this.entropies = model.entropies.clone();
+      this.contradiction = model.contradiction;
+    }
+  }
+
+  protected abstract boolean onBoundary(int x, int y);
+
+  /**
+   * Boundary test for 3D models. 2D models only ever see z == 0.
+   */
+  protected boolean onBoundary(int x, int y, int z) {
+    return this.onBoundary(x, y);
+  }
+
+  public abstract BufferedImage graphics();
+
+  protected static int[] DX = { -1, 0, 1, 0, 0, 0 };
+  protected static int[] DY = { 0, 1, 0, -1, 0, 0 };
+  protected static int[] DZ = { 0, 0, 0, 0, 1, -1 };
+  static int[] opposite = { 2, 3, 0, 1, 5, 4 };
+
+  static long toPower(int a, int n) {
+    long product = 1;
+    for (int i = 0; i < n; i++) product *= a;
+    return product;
+  }
+}
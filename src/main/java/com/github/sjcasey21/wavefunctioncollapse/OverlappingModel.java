@@ -5,11 +5,11 @@ package com.github.sjcasey21.wavefunctioncollapse;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.function.*;
 
 public class OverlappingModel extends Model {
   int N;
   Integer[][] patterns;
+  /** Pattern at the bottom of the generation, -1 for none. */
   int ground;
   List<Color> colors;
 
@@ -39,163 +39,59 @@ public class OverlappingModel extends Model {
     int symmetry,
     int ground
   ) {
-    super(width, height);
-    this.N = N;
-    this.periodic = periodicOutput;
-    
-
-    int SMX = data.getWidth(), SMY = data.getHeight();
-    Integer[][] sample = new Integer[SMX][SMY];
-
-    this.colors = new ArrayList<Color>();
-
-    for (int y = 0; y < SMY; y++) for (int x = 0; x < SMX; x++) {
-      Color color = new Color(data.getRGB(x, y));
-
-      int i = 0;
-      for (Color c : colors) {
-        if (c.equals(color)) break;
-        i++;
-      }
-      if (i == colors.size()) colors.add(color);
-      sample[x][y] = i;
-    }
-
-    int C = this.colors.size();
-    long W = OverlappingModel.toPower(C, this.N * this.N);
-
-    Function<BiFunction<Integer, Integer, Integer>, Integer[]> pattern =
-      (BiFunction<Integer, Integer, Integer> f) -> {
-        Integer[] result = new Integer[this.N * this.N];
-        for (int y = 0; y < this.N; y++) for (int x = 0; x <
-          this.N; x++) result[x + y * this.N] = f.apply(x, y);
-
-        return result;
-      };
-
-    BiFunction<Integer, Integer, Integer[]> patternFromSample =
-      (Integer x, Integer y) -> pattern.apply(
-        (Integer dx, Integer dy) -> sample[(x + dx) % SMX][(y + dy) % SMY]
-      );
-
-    Function<Integer[], Integer[]> rotate =
-      (Integer[] p) -> pattern.apply(
-        (Integer x, Integer y) -> p[this.N - 1 - y + x * this.N]
-      );
-
-    Function<Integer[], Integer[]> reflect =
-      (Integer[] p) -> pattern.apply(
-        (Integer x, Integer y) -> p[this.N - 1 - x + y * this.N]
-      );
-
-    Function<Integer[], Long> index =
-      (Integer[] p) -> {
-        long result = 0, power = 1;
-        for (int i = 0; i < p.length; i++) {
-          result += p[p.length - 1 - i] * power;
-          power *= C;
-        }
-        return result;
-      };
-
-    Function<Long, Integer[]> patternFromIndex =
-      (Long ind) -> {
-        long residue = ind, power = W;
-        Integer[] result = new Integer[this.N * this.N];
-
-        for (int i = 0; i < result.length; i++) {
-          power /= C;
-          int count = 0;
-
-          while (residue >= power) {
-            residue -= power;
-            count++;
-          }
-
-          result[i] = count;
-        }
-
-        return result;
-      };
-
-    HashMap<Long, Integer> weights = new HashMap<Long, Integer>();
-    List<Long> ordering = new ArrayList<Long>();
-
-    for (int y = 0; y < (periodicInput ? SMY : SMY - N + 1); y++) for (int x =
-      0; x < (periodicInput ? SMX : SMX - this.N + 1); x++) {
-      Integer[][] ps = new Integer[8][];
-
-      ps[0] = patternFromSample.apply(x, y);
-      ps[1] = reflect.apply(ps[0]);
-      ps[2] = rotate.apply(ps[0]);
-      ps[3] = reflect.apply(ps[2]);
-      ps[4] = rotate.apply(ps[2]);
-      ps[5] = reflect.apply(ps[4]);
-      ps[6] = rotate.apply(ps[4]);
-      ps[7] = reflect.apply(ps[6]);
-
-      for (int k = 0; k < symmetry; k++) {
-        long ind = index.apply(ps[k]);
-        if (weights.containsKey(ind)) weights.put(
-          ind,
-          weights.get(ind) + 1
-        ); else {
-          weights.put(ind, 1);
-          ordering.add(ind);
-        }
-      }
-    }
-
-    this.T = weights.size();
-    this.ground = (ground + this.T) % this.T;
-    this.patterns = new Integer[this.T][];
-    this.weights = new Double[this.T];
-
-    int counter = 0;
-
-    for (long w : ordering) {
-      this.patterns[counter] = patternFromIndex.apply(w);
-      this.weights[counter] = (double) weights.get(w);
-//      System.out.println(this.weights[counter]);
+    this(
+      PatternSet.compile(data, N, periodicInput, symmetry),
+      width,
+      height,
+      periodicOutput,
+      ground
+    );
+  }
 
-      //        	weights[counter] = weights[(int) w];
-      counter++;
-    }
+  /**
+   * Creates a new instance of the Overlapping Model from compiled patterns.
+   * @param patterns Pattern set, e.g. from {@link PatternSet#compile}.
+   * @param width The width of the generation (in pixels).
+   * @param height The height of the generation (in pixels).
+   * @param periodicOutput Whether the generation should be periodic (repeatable).
+   * @param ground Id of the specific pattern to use as the bottom of the generation.
+   */
+  public OverlappingModel(
+    PatternSet patterns,
+    int width,
+    int height,
+    boolean periodicOutput,
+    int ground
+  ) {
+    this(patterns, width, height, periodicOutput, ground, true);
+  }
 
-    Agrees<Integer[], Integer[], Integer, Integer, Boolean> agrees =
-      (Integer[] p1, Integer[] p2, Integer dx, Integer dy) -> {
-        int xmin = dx < 0 ? 0 : dx;
-        int xmax = dx < 0 ? dx + N : N;
-        int ymin = dy < 0 ? 0 : dy;
-        int ymax = dy < 0 ? dy + N : N;
-
-        for (int y = ymin; y < ymax; y++) for (int x = xmin; x < xmax; x++) if (
-          p1[x + this.N * y] != p2[x - dx + this.N * (y - dy)]
-        ) return false;
-        return true;
-      };
-
-    this.propagator = new int[4][][];
-    
-//    System.out.println(this.T);
-
-    for (int d = 0; d < 4; d++) {
-      this.propagator[d] = new int[this.T][];
-      for (int t = 0; t < this.T; t++) {
-        List<Integer> list = new ArrayList<Integer>();
-        for (int t2 = 0; t2 < this.T; t2++) if (
-          agrees.apply(
-            this.patterns[t],
-            this.patterns[t2],
-            Model.DX[d],
-            Model.DY[d]
-          )
-        ) list.add(t2);
-        this.propagator[d][t] = new int[list.size()];
-        for (int c = 0; c < list.size(); c++) this.propagator[d][t][c] =
-          list.get(c);
-      }
-    }
+  /** @param reduce Whether to reduce the patterns, see {@link Model#reduce}. */
+  OverlappingModel(
+    PatternSet patterns,
+    int width,
+    int height,
+    boolean periodicOutput,
+    int ground,
+    boolean reduce
+  ) {
+    super(width, height);
+    this.N = patterns.N;
+    this.periodic = periodicOutput;
+    this.colors = patterns.colors;
+    this.patterns = patterns.patterns;
+    this.T = patterns.T;
+    this.weights = patterns.weights;
+    this.propagator = patterns.propagator;
+
+    ground = (ground + this.T) % this.T;
+    int keep = ground != 0 ? ground : -1;
+    int ox = periodicOutput ? width : width - this.N + 1;
+    int oy = periodicOutput ? height : height - this.N + 1;
+    if (reduce) this.reduce(keep, new int[] { ox, oy, ox, oy });
+    this.ground = keep < 0 || this.reduction == null
+      ? keep
+      : this.reduction.classOf[keep];
   }
 
   @Override
@@ -234,7 +130,7 @@ public class OverlappingModel extends Model {
         }
       }
     } else {
-      for (int i = 0; i < this.wave.length; i++) {
+      for (int i = 0; i < this.FMX * this.FMY; i++) {
         int contributors = 0, r = 0, g = 0, b = 0;
         int x = i % this.FMX, y = i / this.FMX;
 
@@ -248,12 +144,14 @@ public class OverlappingModel extends Model {
 
           int s = sx + sy * this.FMX;
           if (this.onBoundary(sx, sy)) continue;
-          for (int t = 0; t < this.T; t++) if (wave[s][t]) {
-            contributors++;
-            Color color = this.colors.get(this.patterns[t][dx + dy * this.N]);
-            r += color.getRed();
-            g += color.getGreen();
-            b += color.getBlue();
+          for (int t = 0; t < this.T; t++) if (this.possible(s, t)) {
+            for (int m : this.members(t)) {
+              contributors++;
+              Color color = this.colors.get(this.patterns[m][dx + dy * this.N]);
+              r += color.getRed();
+              g += color.getGreen();
+              b += color.getBlue();
+            }
           }
         }
 
@@ -269,15 +167,113 @@ public class OverlappingModel extends Model {
     return result;
   }
 
-  protected void Clear() {
-    super.Clear();
+  /**
+   * An image of the generation in progress that is redrawn only where the
+   * wave changed, see {@link ProgressiveRenderer}.
+   */
+  public ProgressiveRenderer renderer() {
+    return new Renderer(this);
+  }
+
+  private static final class Renderer extends ProgressiveRenderer {
+    private final OverlappingModel model;
+    // Red, green and blue sums and the number of contributing patterns at
+    // every offset of a pattern: of each wave index, and of the possible
+    // patterns of each cell.
+    private final int[] patternSums, cellSums;
+
+    Renderer(OverlappingModel model) {
+      super(model, model.FMX, model.FMY);
+      this.model = model;
+
+      int K = model.N * model.N;
+      this.patternSums = new int[model.T * K * 4];
+      for (int t = 0; t < model.T; t++) for (int m : model.members(t)) {
+        for (int k = 0; k < K; k++) {
+          Color color = model.colors.get(model.patterns[m][k]);
+          int base = (t * K + k) * 4;
+          this.patternSums[base] += color.getRed();
+          this.patternSums[base + 1] += color.getGreen();
+          this.patternSums[base + 2] += color.getBlue();
+          this.patternSums[base + 3]++;
+        }
+      }
+      this.cellSums = new int[model.FMX * model.FMY * K * 4];
+    }
 
-    if (this.ground != 0) {
+    @Override
+    void refresh(int i) {
+      OverlappingModel model = this.model;
+      int size = model.N * model.N * 4, base = i * size;
+      Arrays.fill(this.cellSums, base, base + size, 0);
+      if (model.onBoundary(i % model.FMX, i / model.FMX)) return;
+
+      for (int w = 0; w < model.W; w++) {
+        long bits = model.wave.get(i * model.W + w);
+        while (bits != 0) {
+          int t = (w << 6) + Long.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+          for (int k = 0; k < size; k++) this.cellSums[base + k] +=
+            this.patternSums[t * size + k];
+        }
+      }
+    }
+
+    @Override
+    void footprint(int i) {
+      OverlappingModel model = this.model;
+      int x = i % model.FMX, y = i / model.FMX;
+      if (model.onBoundary(x, y)) return;
+
+      for (int dy = 0; dy < model.N; dy++) for (int dx = 0; dx < model.N; dx++) {
+        int px = (x + dx) % model.FMX, py = (y + dy) % model.FMY;
+        this.mark(px + py * model.FMX);
+      }
+    }
+
+    @Override
+    int color(int p) {
+      OverlappingModel model = this.model;
+      int N = model.N, x = p % model.FMX, y = p / model.FMX;
+
+      if (model.observed != null) {
+        int dy = y < model.FMY - N + 1 ? 0 : N - 1;
+        int dx = x < model.FMX - N + 1 ? 0 : N - 1;
+        return model.colors
+          .get(model.patterns[model.observed[x - dx + (y - dy) * model.FMX]][dx +
+              dy *
+              N])
+          .getRGB();
+      }
+
+      int contributors = 0, r = 0, g = 0, b = 0;
+      for (int dy = 0; dy < N; dy++) for (int dx = 0; dx < N; dx++) {
+        int sx = x - dx;
+        if (sx < 0) sx += model.FMX;
+
+        int sy = y - dy;
+        if (sy < 0) sy += model.FMY;
+
+        int base = ((sx + sy * model.FMX) * N * N + dx + dy * N) * 4;
+        r += this.cellSums[base];
+        g += this.cellSums[base + 1];
+        b += this.cellSums[base + 2];
+        contributors += this.cellSums[base + 3];
+      }
+
+      // A contradiction leaves pixels no pattern covers, drawn black.
+      if (contributors == 0) return 0;
+      return (
+        ((r / contributors) << 16) | ((g / contributors) << 8) | (b / contributors)
+      );
+    }
+  }
+
+  @Override
+  protected void constrain() {
+    if (this.ground >= 0) {
       for (int x = 0; x < this.FMX; x++) {
-        for (int t = 0; t < this.T; t++) if (t != this.ground) this.ban(
-            x + (this.FMY - 1) * this.FMX,
-            t
-          );
+        this.collapse(x + (this.FMY - 1) * this.FMX, this.ground);
 
         for (int y = 0; y < this.FMY - 1; y++) this.ban(
             x + y * this.FMX,
@@ -0,0 +1,194 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Compiled rules of an Overlapping Model: the N x N patterns of a sample
+ * image, their weights and the propagator. A pattern set is immutable and
+ * can be shared by any number of OverlappingModel instances.
+ */
+public final class PatternSet {
+  final int N;
+  final int T;
+  final List<Color> colors;
+  final Integer[][] patterns;
+  final Double[] weights;
+  final int[][][] propagator;
+
+  private PatternSet(
+    int N,
+    List<Color> colors,
+    Integer[][] patterns,
+    Double[] weights,
+    int[][][] propagator
+  ) {
+    this.N = N;
+    this.T = weights.length;
+    this.colors = colors;
+    this.patterns = patterns;
+    this.weights = weights;
+    this.propagator = propagator;
+  }
+
+  /**
+   * Extract the patterns of a sample image.
+   * @param data BufferedImage data of source image.
+   * @param N Size of the patterns.
+   * @param periodicInput Whether the source image is to be considered as periodic (repeatable).
+   * @param symmetry Allowed symmetries from 1 (no symmetry) to 8 (all mirrored / rotated variations).
+   */
+  public static PatternSet compile(
+    BufferedImage data,
+    int N,
+    boolean periodicInput,
+    int symmetry
+  ) {
+    int SMX = data.getWidth(), SMY = data.getHeight();
+    Integer[][] sample = new Integer[SMX][SMY];
+
+    List<Color> colors = new ArrayList<Color>();
+
+    for (int y = 0; y < SMY; y++) for (int x = 0; x < SMX; x++) {
+      Color color = new Color(data.getRGB(x, y));
+
+      int i = 0;
+      for (Color c : colors) {
+        if (c.equals(color)) break;
+        i++;
+      }
+      if (i == colors.size()) colors.add(color);
+      sample[x][y] = i;
+    }
+
+    int C = colors.size();
+    long W = Model.toPower(C, N * N);
+
+    Function<BiFunction<Integer, Integer, Integer>, Integer[]> pattern =
+      (BiFunction<Integer, Integer, Integer> f) -> {
+        Integer[] result = new Integer[N * N];
+        for (int y = 0; y < N; y++) for (int x = 0; x < N; x++) result[x +
+          y * N] = f.apply(x, y);
+
+        return result;
+      };
+
+    BiFunction<Integer, Integer, Integer[]> patternFromSample =
+      (Integer x, Integer y) -> pattern.apply(
+        (Integer dx, Integer dy) -> sample[(x + dx) % SMX][(y + dy) % SMY]
+      );
+
+    Function<Integer[], Integer[]> rotate =
+      (Integer[] p) -> pattern.apply(
+        (Integer x, Integer y) -> p[N - 1 - y + x * N]
+      );
+
+    Function<Integer[], Integer[]> reflect =
+      (Integer[] p) -> pattern.apply(
+        (Integer x, Integer y) -> p[N - 1 - x + y * N]
+      );
+
+    Function<Integer[], Long> index =
+      (Integer[] p) -> {
+        long result = 0, power = 1;
+        for (int i = 0; i < p.length; i++) {
+          result += p[p.length - 1 - i] * power;
+          power *= C;
+        }
+        return result;
+      };
+
+    Function<Long, Integer[]> patternFromIndex =
+      (Long ind) -> {
+        long residue = ind, power = W;
+        Integer[] result = new Integer[N * N];
+
+        for (int i = 0; i < result.length; i++) {
+          power /= C;
+          int count = 0;
+
+          while (residue >= power) {
+            residue -= power;
+            count++;
+          }
+
+          result[i] = count;
+        }
+
+        return result;
+      };
+
+    HashMap<Long, Integer> weights = new HashMap<Long, Integer>();
+    List<Long> ordering = new ArrayList<Long>();
+
+    for (int y = 0; y < (periodicInput ? SMY : SMY - N + 1); y++) for (int x =
+      0; x < (periodicInput ? SMX : SMX - N + 1); x++) {
+      Integer[][] ps = new Integer[8][];
+
+      ps[0] = patternFromSample.apply(x, y);
+      ps[1] = reflect.apply(ps[0]);
+      ps[2] = rotate.apply(ps[0]);
+      ps[3] = reflect.apply(ps[2]);
+      ps[4] = rotate.apply(ps[2]);
+      ps[5] = reflect.apply(ps[4]);
+      ps[6] = rotate.apply(ps[4]);
+      ps[7] = reflect.apply(ps[6]);
+
+      for (int k = 0; k < symmetry; k++) {
+        long ind = index.apply(ps[k]);
+        if (weights.containsKey(ind)) weights.put(
+          ind,
+          weights.get(ind) + 1
+        ); else {
+          weights.put(ind, 1);
+          ordering.add(ind);
+        }
+      }
+    }
+
+    int T = weights.size();
+    Integer[][] patterns = new Integer[T][];
+    Double[] stationary = new Double[T];
+
+    int counter = 0;
+
+    for (long w : ordering) {
+      patterns[counter] = patternFromIndex.apply(w);
+      stationary[counter] = (double) weights.get(w);
+      counter++;
+    }
+
+    OverlappingModel.Agrees<Integer[], Integer[], Integer, Integer, Boolean> agrees =
+      (Integer[] p1, Integer[] p2, Integer dx, Integer dy) -> {
+        int xmin = dx < 0 ? 0 : dx;
+        int xmax = dx < 0 ? dx + N : N;
+        int ymin = dy < 0 ? 0 : dy;
+        int ymax = dy < 0 ? dy + N : N;
+
+        for (int y = ymin; y < ymax; y++) for (int x = xmin; x < xmax; x++) if (
+          p1[x + N * y] != p2[x - dx + N * (y - dy)]
+        ) return false;
+        return true;
+      };
+
+    int[][][] propagator = new int[4][][];
+
+    for (int d = 0; d < 4; d++) {
+      propagator[d] = new int[T][];
+      for (int t = 0; t < T; t++) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int t2 = 0; t2 < T; t2++) if (
+          agrees.apply(patterns[t], patterns[t2], Model.DX[d], Model.DY[d])
+        ) list.add(t2);
+        propagator[d][t] = new int[list.size()];
+        for (int c = 0; c < list.size(); c++) propagator[d][t][c] = list.get(c);
+      }
+    }
+
+    return new PatternSet(N, colors, patterns, stationary, propagator);
+  }
+}
@@ -0,0 +1,122 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Image of a generation in progress that is kept between frames and only
+ * redrawn where the wave changed, so a frame costs in proportion to the
+ * cells banned since the previous one rather than to the output size. The
+ * pixels match what the model's graphics() would draw at the same point.
+ *
+ * <pre>
+ * ProgressiveRenderer renderer = model.renderer();
+ * boolean ok = model.run(seed, 10);
+ * while (true) {
+ *   renderer.update();
+ *   show(renderer.image(), renderer.changed());
+ *   if (!ok || model.finished()) break;
+ *   ok = model.resume(10);
+ * }
+ * </pre>
+ *
+ * A renderer must only be updated while its model is not running. After a
+ * new run, or a restore(), the next update redraws everything.
+ */
+public abstract class ProgressiveRenderer {
+  private final Model model;
+  private final int cells;
+  private final BufferedImage image;
+  private final int[] pixels;
+
+  // Pixels to redraw in this update, as a bitset and in order.
+  private final long[] marked;
+  private final int[] queue;
+  private int queued;
+
+  private final int[] changed;
+  private int changes;
+
+  private final IntConsumer visit = i -> {
+    this.refresh(i);
+    this.footprint(i);
+  };
+
+  ProgressiveRenderer(Model model, int width, int height) {
+    this.model = model;
+    this.cells = model.FMX * model.FMY * model.FMZ;
+    this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    this.pixels =
+      ((DataBufferInt) this.image.getRaster().getDataBuffer()).getData();
+    this.marked = new long[(this.pixels.length + 63) >>> 6];
+    this.queue = new int[this.pixels.length];
+    this.changed = new int[this.pixels.length];
+
+    model.trackDirty();
+  }
+
+  /**
+   * Redraw the pixels that depend on cells changed since the last update.
+   * @return Number of pixels whose colour changed.
+   */
+  public int update() {
+    this.changes = 0;
+    if (this.model.wave == null) return 0;
+
+    if (!this.model.drainDirty(this.visit)) {
+      for (int i = 0; i < this.cells; i++) this.refresh(i);
+      for (int p = 0; p < this.pixels.length; p++) this.draw(p);
+      this.queued = 0;
+      Arrays.fill(this.marked, 0);
+      return this.changes;
+    }
+
+    for (int k = 0; k < this.queued; k++) {
+      int p = this.queue[k];
+      this.marked[p >>> 6] &= ~(1L << p);
+      this.draw(p);
+    }
+    this.queued = 0;
+    return this.changes;
+  }
+
+  /** The image, updated in place by update(). */
+  public BufferedImage image() {
+    return this.image;
+  }
+
+  /**
+   * Pixels whose colour changed in the last update(), as indices
+   * {@code x + y * width}. Their new colours are in image().
+   */
+  public int[] changed() {
+    return Arrays.copyOf(this.changed, this.changes);
+  }
+
+  /** Schedule pixel p to be redrawn in this update. */
+  final void mark(int p) {
+    if ((this.marked[p >>> 6] & (1L << p)) != 0) return;
+    this.marked[p >>> 6] |= 1L << p;
+    this.queue[this.queued++] = p;
+  }
+
+  private void draw(int p) {
+    int color = this.color(p) & 0xffffff;
+    if (color == this.pixels[p]) return;
+    this.pixels[p] = color;
+    this.changed[this.changes++] = p;
+  }
+
+  /** Update whatever the renderer caches about cell i. */
+  abstract void refresh(int i);
+
+  /** mark() every pixel whose colour depends on cell i. */
+  abstract void footprint(int i);
+
+  /** Colour of pixel p as graphics() would draw it now, as 0xRRGGBB. */
+  abstract int color(int p);
+}
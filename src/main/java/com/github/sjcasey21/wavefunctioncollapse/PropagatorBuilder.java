@@ -0,0 +1,65 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.util.Arrays;
+
+/**
+ * Collects allowed neighbour pairs straight into per-pattern rows, so tile
+ * sets never need a dense T x T table. Every pair is recorded in both
+ * directions.
+ */
+final class PropagatorBuilder {
+  private final int[][][] rows;
+  private final int[][] sizes;
+
+  PropagatorBuilder(int directions, int T) {
+    this.rows = new int[directions][T][];
+    this.sizes = new int[directions][T];
+  }
+
+  /** Allow t2 next to t1 in direction d (and t1 next to t2 in the opposite). */
+  void allow(int d, int t1, int t2) {
+    this.add(d, t1, t2);
+    this.add(Model.opposite[d], t2, t1);
+  }
+
+  private void add(int d, int t1, int t2) {
+    int[] row = this.rows[d][t1];
+    int size = this.sizes[d][t1];
+
+    if (row == null) row = this.rows[d][t1] = new int[4]; else if (
+      size == row.length
+    ) row = this.rows[d][t1] = Arrays.copyOf(row, 2 * size);
+
+    row[size] = t2;
+    this.sizes[d][t1] = size + 1;
+  }
+
+  /** Sorted, duplicate free propagator[d][t1][] rows. */
+  int[][][] build() {
+    int[][][] propagator = new int[this.rows.length][][];
+
+    for (int d = 0; d < this.rows.length; d++) {
+      propagator[d] = new int[this.rows[d].length][];
+      for (int t = 0; t < this.rows[d].length; t++) {
+        int[] row = this.rows[d][t];
+        int size = this.sizes[d][t];
+        if (row == null) {
+          propagator[d][t] = new int[0];
+          continue;
+        }
+
+        Arrays.sort(row, 0, size);
+        int unique = 0;
+        for (int l = 0; l < size; l++) if (
+          unique == 0 || row[unique - 1] != row[l]
+        ) row[unique++] = row[l];
+
+        propagator[d][t] = Arrays.copyOf(row, unique);
+      }
+    }
+
+    return propagator;
+  }
+}
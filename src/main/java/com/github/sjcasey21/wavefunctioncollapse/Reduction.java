@@ -0,0 +1,211 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.util.*;
+
+/**
+ * Smaller but equivalent rules, computed before any wave is allocated.
+ * Patterns that can not be placed anywhere are dropped by enforcing arc
+ * consistency on the rule graph itself, patterns whose rows are the same in
+ * every direction are merged into one class, and the classes are numbered
+ * in order of their first member.
+ *
+ * Rows must be symmetric: t2 is in row[d][t1] exactly when t1 is in
+ * row[opposite[d]][t2]. An empty row leaves the pattern only the cells with
+ * no neighbour on that side, which non-periodic output has along its edges.
+ */
+final class Reduction {
+  /** Number of classes. */
+  final int T;
+  /** Class of every original pattern, -1 for dropped ones. */
+  final int[] classOf;
+  /** Original patterns of every class, in increasing order. */
+  final int[][] members;
+  /** Summed weight of every class. */
+  final double[] weights;
+  /** Rows between classes, sorted. */
+  final int[][][] propagator;
+
+  private final double[] originalWeights;
+
+  private Reduction(
+    int[] classOf,
+    int[][] members,
+    double[] originalWeights,
+    int[][][] propagator
+  ) {
+    this.T = members.length;
+    this.classOf = classOf;
+    this.members = members;
+    this.originalWeights = originalWeights;
+    this.propagator = propagator;
+
+    this.weights = new double[this.T];
+    for (int c = 0; c < this.T; c++) for (int t : members[c]) this.weights[c] +=
+      originalWeights[t];
+  }
+
+  /**
+   * Reduce a rule set.
+   * @param weights Weight of every pattern.
+   * @param rows Allowed neighbours, rows[d][t].
+   * @param periodic Whether every cell has a neighbour in every direction.
+   * @param extent Number of observable cells along direction d. Without
+   * periodicity a cell only needs a neighbour on one side of an axis that
+   * has at least two cells.
+   * @param keep Pattern that must neither be dropped nor merged with others
+   * (e.g. the ground, which is banned and collapsed to on its own), or -1.
+   * @return The reduction, or null if no pattern could be dropped or merged.
+   */
+  static Reduction of(
+    double[] weights,
+    int[][][] rows,
+    boolean periodic,
+    int[] extent,
+    int keep
+  ) {
+    int D = rows.length, T = weights.length;
+
+    // count[d][t]: live patterns in rows[d][t].
+    int[][] count = new int[D][T];
+    for (int d = 0; d < D; d++) for (int t = 0; t < T; t++) count[d][t] =
+      rows[d][t].length;
+
+    boolean[] alive = new boolean[T];
+    Arrays.fill(alive, true);
+    int[] queue = new int[T + 1];
+    boolean[] queued = new boolean[T];
+    int head = 0, tail = 0;
+    for (int t = 0; t < T; t++) {
+      queue[tail++] = t;
+      queued[t] = true;
+    }
+
+    int dropped = 0;
+    while (head != tail) {
+      int t = queue[head];
+      head = (head + 1) % (T + 1);
+      queued[t] = false;
+      if (
+        !alive[t] ||
+        t == keep ||
+        Reduction.placeable(t, count, periodic, extent)
+      ) continue;
+
+      alive[t] = false;
+      dropped++;
+      for (int d = 0; d < D; d++) {
+        int o = Model.opposite[d];
+        for (int u : rows[d][t]) {
+          count[o][u]--;
+          if (alive[u] && !queued[u]) {
+            queue[tail] = u;
+            tail = (tail + 1) % (T + 1);
+            queued[u] = true;
+          }
+        }
+      }
+    }
+
+    // Merge patterns whose live rows are identical in every direction, all
+    // but keep, which gets a class of its own.
+    int[] classOf = new int[T];
+    Arrays.fill(classOf, -1);
+    Map<Signature, Integer> classes = new HashMap<Signature, Integer>();
+    List<List<Integer>> members = new ArrayList<List<Integer>>();
+    for (int t = 0; t < T; t++) {
+      if (!alive[t]) continue;
+
+      int[][] live = new int[D][];
+      for (int d = 0; d < D; d++) live[d] =
+        Arrays
+          .stream(rows[d][t])
+          .filter(u -> alive[u])
+          .sorted()
+          .toArray();
+
+      Integer c = t == keep ? null : classes.get(new Signature(live));
+      if (c == null) {
+        c = members.size();
+        if (t != keep) classes.put(new Signature(live), c);
+        members.add(new ArrayList<Integer>());
+      }
+      classOf[t] = c;
+      members.get(c).add(t);
+    }
+
+    if (dropped == 0 && members.size() == T) return null;
+
+    int[][] memberArrays = new int[members.size()][];
+    for (int c = 0; c < memberArrays.length; c++) memberArrays[c] =
+      members.get(c).stream().mapToInt(Integer::intValue).toArray();
+
+    int[][][] propagator = new int[D][memberArrays.length][];
+    for (int d = 0; d < D; d++) for (int c = 0; c < memberArrays.length; c++) {
+      propagator[d][c] =
+        Arrays
+          .stream(rows[d][memberArrays[c][0]])
+          .map(u -> classOf[u])
+          .filter(u -> u >= 0)
+          .sorted()
+          .distinct()
+          .toArray();
+    }
+
+    return new Reduction(classOf, memberArrays, weights, propagator);
+  }
+
+  // Whether t has a live neighbour in every direction it needs one, count
+  // being the number of live patterns in each of its rows.
+  private static boolean placeable(
+    int t,
+    int[][] count,
+    boolean periodic,
+    int[] extent
+  ) {
+    for (int d = 0; d < count.length; d++) {
+      if (count[d][t] > 0) continue;
+      if (periodic) return false;
+
+      int o = Model.opposite[d];
+      if (extent[d] > 1 && count[o][t] == 0) return false;
+    }
+    return true;
+  }
+
+  /** A member of class c, drawn by weight. */
+  int member(int c, Random random) {
+    int[] m = this.members[c];
+    if (m.length == 1) return m[0];
+
+    double x = random.nextDouble() * this.weights[c];
+    for (int k = 0; k < m.length - 1; k++) {
+      x -= this.originalWeights[m[k]];
+      if (x < 0) return m[k];
+    }
+    return m[m.length - 1];
+  }
+
+  private static final class Signature {
+    final int[][] rows;
+    final int hash;
+
+    Signature(int[][] rows) {
+      this.rows = rows;
+      this.hash = Arrays.deepHashCode(rows);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return (
+        o instanceof Signature && Arrays.deepEquals(this.rows, ((Signature) o).rows)
+      );
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+  }
+}
@@ -0,0 +1,427 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Copy of the complete solver state of a Model between two observations.
+ * A snapshot can be restored any number of times into a model built from
+ * the same rules and output size, and can be written to / read from a
+ * checkpoint file. Checkpoint files are little-endian whatever the
+ * platform, so they move between machines. The cell selector's own state,
+ * such as the tie-breaking noise of {@link CellSelector#entropy}, is part
+ * of the snapshot; see {@link CellSelector} for which selectors resume
+ * exactly.
+ */
+public final class Snapshot {
+  private static final int MAGIC = 0x57464353; // "WFCS"
+  private static final int VERSION = 3;
+  private static final int HEADER = 11 * 4 + 8;
+  private static final int CHUNK = 1 << 27;
+
+  final int FMX, FMY, FMZ, T;
+  final long rules;
+
+  final long[] wave;
+  final int[] compatible;
+  final int[] observed;
+  final int[] stack;
+
+  final int[] sumsOfOnes;
+  final double[] sumsOfWeights, sumsOfWeightLogWeights, entropies;
+
+  final double[] selector;
+  final byte[] random;
+
+  Snapshot(
+    int FMX,
+    int FMY,
+    int FMZ,
+    int T,
+    long rules,
+    long[] wave,
+    int[] compatible,
+    int[] observed,
+    int[] stack,
+    int[] sumsOfOnes,
+    double[] sumsOfWeights,
+    double[] sumsOfWeightLogWeights,
+    double[] entropies,
+    double[] selector,
+    byte[] random
+  ) {
+    this.FMX = FMX;
+    this.FMY = FMY;
+    this.FMZ = FMZ;
+    this.T = T;
+    this.rules = rules;
+    this.wave = wave;
+    this.compatible = compatible;
+    this.observed = observed;
+    this.stack = stack;
+    this.sumsOfOnes = sumsOfOnes;
+    this.sumsOfWeights = sumsOfWeights;
+    this.sumsOfWeightLogWeights = sumsOfWeightLogWeights;
+    this.entropies = entropies;
+    this.selector = selector;
+    this.random = random;
+  }
+
+  /**
+   * Write the snapshot to a checkpoint file through memory-mapped buffers.
+   * @param path File to create or overwrite.
+   */
+  public void write(Path path) throws IOException {
+    Snapshot.write(
+      path,
+      this.FMX,
+      this.FMY,
+      this.FMZ,
+      this.T,
+      this.rules,
+      new Storage.HeapLongs(this.wave),
+      new Storage.HeapInts(this.compatible),
+      new Storage.HeapInts(this.stack),
+      this.stack.length,
+      this.observed,
+      this.sumsOfOnes,
+      this.sumsOfWeights,
+      this.sumsOfWeightLogWeights,
+      this.entropies,
+      this.selector,
+      this.random
+    );
+  }
+
+  /**
+   * Write a checkpoint file straight from a model's storage, without
+   * copying the state first. The file is the same as the one written from
+   * a snapshot of the model.
+   * @param compatible Counters, or null when the model propagates with masks.
+   * @param stack Storage holding stackLength entries.
+   * @param selector State of the cell selector, empty if it keeps none.
+   */
+  static void write(
+    Path path,
+    int FMX,
+    int FMY,
+    int FMZ,
+    int T,
+    long rules,
+    Storage.Longs wave,
+    Storage.Ints compatible,
+    Storage.Ints stack,
+    int stackLength,
+    int[] observed,
+    int[] sumsOfOnes,
+    double[] sumsOfWeights,
+    double[] sumsOfWeightLogWeights,
+    double[] entropies,
+    double[] selector,
+    byte[] random
+  ) throws IOException {
+    int compatibleLength = compatible == null ? 0 : compatible.length();
+
+    try (
+      FileChannel channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      )
+    ) {
+      MappedByteBuffer header = window(
+        channel,
+        MapMode.READ_WRITE,
+        0,
+        HEADER
+      );
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(FMX);
+      header.putInt(FMY);
+      header.putInt(FMZ);
+      header.putInt(T);
+      header.putInt(observed == null ? 0 : 1);
+      header.putInt(compatibleLength);
+      header.putInt(stackLength);
+      header.putInt(selector.length);
+      header.putInt(random.length);
+      header.putLong(rules);
+
+      long offset = HEADER;
+      offset = putLongs(channel, offset, wave, wave.length());
+      if (compatible != null) offset =
+        putInts(channel, offset, compatible, compatibleLength);
+      offset = putInts(channel, offset, stack, stackLength);
+      offset = putInts(channel, offset, sumsOfOnes);
+      if (observed != null) offset = putInts(channel, offset, observed);
+      offset = putDoubles(channel, offset, sumsOfWeights);
+      offset = putDoubles(channel, offset, sumsOfWeightLogWeights);
+      offset = putDoubles(channel, offset, entropies);
+      offset = putDoubles(channel, offset, selector);
+      channel.map(MapMode.READ_WRITE, offset, random.length).put(random);
+
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Read a snapshot previously written by {@link #write(Path)}.
+   * @param path Checkpoint file.
+   */
+  public static Snapshot read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) throw new IOException(
+        "Not a checkpoint file: " + path
+      );
+
+      MappedByteBuffer header = window(
+        channel,
+        MapMode.READ_ONLY,
+        0,
+        HEADER
+      );
+
+      int magic = header.getInt();
+      if (magic == Integer.reverseBytes(MAGIC)) throw new IOException(
+        "Checkpoint file in big-endian byte order: " + path
+      );
+      if (magic != MAGIC) throw new IOException(
+        "Not a checkpoint file: " + path
+      );
+      int version = header.getInt();
+      if (version != VERSION) throw new IOException(
+        "Unsupported checkpoint version " + version + ": " + path
+      );
+
+      int FMX = header.getInt(), FMY = header.getInt(), FMZ = header.getInt();
+      int T = header.getInt();
+      boolean hasObserved = header.getInt() != 0;
+      int compatibleLength = header.getInt();
+      int stackLength = header.getInt();
+      int selectorLength = header.getInt();
+      int randomLength = header.getInt();
+      long rules = header.getLong();
+
+      // Every length is checked against the dimensions and the file size
+      // before anything is allocated, so a damaged header can not ask for
+      // more memory than the file could hold.
+      if (FMX <= 0 || FMY <= 0 || FMZ <= 0 || T <= 0) throw corrupt(path);
+      long cells = (long) FMX * FMY * FMZ;
+      long words = cells * ((T + 63) >>> 6);
+      if (words > Integer.MAX_VALUE) throw corrupt(path);
+      if (
+        compatibleLength < 0 || compatibleLength % (cells * T) != 0
+      ) throw corrupt(path);
+      if (stackLength < 0 || stackLength > 2 * cells * T) throw corrupt(path);
+      if (selectorLength != 0 && selectorLength != cells) throw corrupt(path);
+      if (randomLength < 0) throw corrupt(path);
+
+      long size =
+        HEADER +
+        8 * words +
+        4L * compatibleLength +
+        4L * stackLength +
+        4 * cells * (hasObserved ? 2 : 1) +
+        24 * cells +
+        8L * selectorLength +
+        randomLength;
+      if (channel.size() != size) throw corrupt(path);
+
+      long[] wave = new long[(int) words];
+      int[] compatible = new int[compatibleLength];
+      int[] stack = new int[stackLength];
+      int[] sumsOfOnes = new int[(int) cells];
+      int[] observed = hasObserved ? new int[(int) cells] : null;
+      double[] sumsOfWeights = new double[(int) cells];
+      double[] sumsOfWeightLogWeights = new double[(int) cells];
+      double[] entropies = new double[(int) cells];
+      double[] selector = new double[selectorLength];
+      byte[] random = new byte[randomLength];
+
+      long offset = HEADER;
+      offset = getLongs(channel, offset, wave);
+      offset = getInts(channel, offset, compatible);
+      offset = getInts(channel, offset, stack);
+      offset = getInts(channel, offset, sumsOfOnes);
+      if (observed != null) offset = getInts(channel, offset, observed);
+      offset = getDoubles(channel, offset, sumsOfWeights);
+      offset = getDoubles(channel, offset, sumsOfWeightLogWeights);
+      offset = getDoubles(channel, offset, entropies);
+      offset = getDoubles(channel, offset, selector);
+      channel.map(MapMode.READ_ONLY, offset, randomLength).get(random);
+
+      return new Snapshot(
+        FMX,
+        FMY,
+        FMZ,
+        T,
+        rules,
+        wave,
+        compatible,
+        observed,
+        stack,
+        sumsOfOnes,
+        sumsOfWeights,
+        sumsOfWeightLogWeights,
+        entropies,
+        selector,
+        random
+      );
+    }
+  }
+
+  private static IOException corrupt(Path path) {
+    return new IOException("Truncated or corrupt checkpoint file: " + path);
+  }
+
+  static byte[] saveRandom(Random random) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(random);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not save random state", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Random loadRandom(byte[] data) {
+    try (
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))
+    ) {
+      return (Random) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("Could not restore random state", e);
+    }
+  }
+
+  // Arrays are mapped in windows of at most CHUNK elements so that
+  // checkpoints larger than 2GB can be written and read. Everything is
+  // little-endian.
+  private static MappedByteBuffer window(
+    FileChannel channel,
+    MapMode mode,
+    long offset,
+    long bytes
+  ) throws IOException {
+    MappedByteBuffer buffer = channel.map(mode, offset, bytes);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  private static long putLongs(
+    FileChannel channel,
+    long offset,
+    Storage.Longs values,
+    int count
+  ) throws IOException {
+    for (int from = 0; from < count; from += CHUNK) {
+      int length = Math.min(CHUNK, count - from);
+      values.get(
+        from,
+        window(channel, MapMode.READ_WRITE, offset, 8L * length).asLongBuffer(),
+        length
+      );
+      offset += 8L * length;
+    }
+    return offset;
+  }
+
+  private static long putInts(
+    FileChannel channel,
+    long offset,
+    Storage.Ints values,
+    int count
+  ) throws IOException {
+    for (int from = 0; from < count; from += CHUNK) {
+      int length = Math.min(CHUNK, count - from);
+      values.get(
+        from,
+        window(channel, MapMode.READ_WRITE, offset, 4L * length).asIntBuffer(),
+        length
+      );
+      offset += 4L * length;
+    }
+    return offset;
+  }
+
+  private static long putInts(FileChannel channel, long offset, int[] values)
+    throws IOException {
+    for (int from = 0; from < values.length; from += CHUNK) {
+      int length = Math.min(CHUNK, values.length - from);
+      window(channel, MapMode.READ_WRITE, offset, 4L * length)
+        .asIntBuffer()
+        .put(values, from, length);
+      offset += 4L * length;
+    }
+    return offset;
+  }
+
+  private static long putDoubles(
+    FileChannel channel,
+    long offset,
+    double[] values
+  ) throws IOException {
+    for (int from = 0; from < values.length; from += CHUNK) {
+      int length = Math.min(CHUNK, values.length - from);
+      window(channel, MapMode.READ_WRITE, offset, 8L * length)
+        .asDoubleBuffer()
+        .put(values, from, length);
+      offset += 8L * length;
+    }
+    return offset;
+  }
+
+  private static long getLongs(FileChannel channel, long offset, long[] values)
+    throws IOException {
+    for (int from = 0; from < values.length; from += CHUNK) {
+      int length = Math.min(CHUNK, values.length - from);
+      window(channel, MapMode.READ_ONLY, offset, 8L * length)
+        .asLongBuffer()
+        .get(values, from, length);
+      offset += 8L * length;
+    }
+    return offset;
+  }
+
+  private static long getInts(FileChannel channel, long offset, int[] values)
+    throws IOException {
+    for (int from = 0; from < values.length; from += CHUNK) {
+      int length = Math.min(CHUNK, values.length - from);
+      window(channel, MapMode.READ_ONLY, offset, 4L * length)
+        .asIntBuffer()
+        .get(values, from, length);
+      offset += 4L * length;
+    }
+    return offset;
+  }
+
+  private static long getDoubles(
+    FileChannel channel,
+    long offset,
+    double[] values
+  ) throws IOException {
+    for (int from = 0; from < values.length; from += CHUNK) {
+      int length = Math.min(CHUNK, values.length - from);
+      window(channel, MapMode.READ_ONLY, offset, 8L * length)
+        .asDoubleBuffer()
+        .get(values, from, length);
+      offset += 8L * length;
+    }
+    return offset;
+  }
+}
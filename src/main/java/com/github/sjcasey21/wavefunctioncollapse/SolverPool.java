@@ -0,0 +1,75 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe pool of models built from the same rules and output size, for
+ * running many small generations without allocating a wave each time. The
+ * models share one template of the state a generation starts from, so only
+ * the first model pays for the initial bans and propagation.
+ *
+ * <pre>
+ * SolverPool&lt;OverlappingModel&gt; pool = new SolverPool&lt;&gt;(
+ *   () -&gt; new OverlappingModel(patterns, 32, 32, true, 0), 8);
+ * OverlappingModel model = pool.acquire();
+ * try {
+ *   if (model.run(seed, 0)) ImageIO.write(model.graphics(), "png", out);
+ * } finally {
+ *   pool.release(model);
+ * }
+ * </pre>
+ * @param <M> Type of the pooled models.
+ */
+public final class SolverPool<M extends Model> {
+  private final Supplier<M> factory;
+  private final ArrayBlockingQueue<M> idle;
+  private volatile Model.Template pristine;
+
+  /**
+   * @param factory Creates a model; every model it creates must have the
+   * same rules and output size.
+   * @param capacity Number of idle models kept, further released models are
+   * left to the garbage collector.
+   */
+  public SolverPool(Supplier<M> factory, int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException(
+      "capacity must be positive"
+    );
+
+    this.factory = factory;
+    this.idle = new ArrayBlockingQueue<M>(capacity);
+  }
+
+  /**
+   * An idle model, or a new one if there is none. The model belongs to the
+   * caller until it is released. Building a model allocates its wave and may
+   * take as long as a generation, so threads that must stay responsive
+   * should not call this directly.
+   */
+  public M acquire() {
+    M model = this.idle.poll();
+    if (model != null) return model;
+
+    model = this.factory.get();
+    Model.Template pristine = this.pristine;
+    if (pristine != null) model.adopt(pristine); else this.pristine =
+      model.pristine();
+    return model;
+  }
+
+  /**
+   * Hand a model back once nothing uses it any more, including a
+   * generate() that has not finished.
+   */
+  public void release(M model) {
+    this.idle.offer(model);
+  }
+
+  /** Number of idle models. */
+  public int idle() {
+    return this.idle.size();
+  }
+}
@@ -0,0 +1,735 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Where a Model keeps its per-pattern state: the wave, the patterns removed
+ * since a cell was last propagated, the compatibility counters and the
+ * propagation stack.
+ *
+ * On-heap arrays are the default. Direct buffers and memory-mapped scratch
+ * files move the bulk of a large output out of the heap (and out of the
+ * garbage collector's way); a mapped file can also be paged out to disk by
+ * the operating system. Memory that is not on the heap is released when the
+ * model is garbage collected.
+ *
+ * Only that per-pattern state moves. The rules, the entropy caches and the
+ * observed patterns stay on the heap at 32 bytes per cell, and so does the
+ * cell selector, at up to 29 more bytes per cell for
+ * {@link CellSelector#entropy}. A 4096x4096 output therefore still needs
+ * 0.5 to 1GB of heap whatever the storage.
+ */
+public abstract class Storage {
+  /** Plain arrays on the heap. */
+  public static Storage heap() {
+    return HEAP;
+  }
+
+  /** Buffers from {@link ByteBuffer#allocateDirect}. */
+  public static Storage direct() {
+    return new Buffers() {
+      @Override
+      ByteBuffer allocate(long bytes) {
+        return ByteBuffer.allocateDirect((int) bytes);
+      }
+    };
+  }
+
+  /**
+   * Buffers mapped from scratch files in directory. Each file is deleted
+   * again as soon as it is mapped where the file system allows it, and
+   * otherwise when the JVM exits.
+   */
+  public static Storage mapped(Path directory) {
+    return new Buffers() {
+      @Override
+      ByteBuffer allocate(long bytes) {
+        try {
+          Path file = Files.createTempFile(directory, "wfc", ".bin");
+          try (
+            FileChannel channel = FileChannel.open(
+              file,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE
+            )
+          ) {
+            return channel.map(MapMode.READ_WRITE, 0, bytes);
+          } finally {
+            try {
+              Files.delete(file);
+            } catch (IOException e) {
+              file.toFile().deleteOnExit();
+            }
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  private static final Storage HEAP = new Storage() {
+    @Override
+    Longs longs(int length) {
+      return new HeapLongs(new long[length]);
+    }
+
+    @Override
+    Ints ints(int length) {
+      return new HeapInts(new int[length]);
+    }
+
+    @Override
+    Ints bytes(int length) {
+      return new HeapBytes(new byte[length]);
+    }
+
+    @Override
+    Ints chars(int length) {
+      return new HeapChars(new char[length]);
+    }
+
+    @Override
+    boolean onHeap() {
+      return true;
+    }
+  };
+
+  abstract Longs longs(int length);
+
+  abstract Ints ints(int length);
+
+  /** Unsigned bytes. */
+  abstract Ints bytes(int length);
+
+  /** Unsigned shorts. */
+  abstract Ints chars(int length);
+
+  boolean onHeap() {
+    return false;
+  }
+
+  /**
+   * Counters that start at no more than max, in the narrowest of unsigned
+   * bytes, unsigned shorts and ints that holds them.
+   */
+  Ints counters(int length, int max) {
+    if (max <= 0xff) return this.bytes(length);
+    if (max <= 0xffff) return this.chars(length);
+    return this.ints(length);
+  }
+
+  /** Arrays in byte buffers of native byte order, however they are made. */
+  private abstract static class Buffers extends Storage {
+    // Buffers are split in chunks of 1GB, the largest a ByteBuffer can hold
+    // being just under 2GB.
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    /** A zeroed buffer of the given size, at most CHUNK_BYTES. */
+    abstract ByteBuffer allocate(long bytes);
+
+    @Override
+    Longs longs(int length) {
+      int per = CHUNK_BYTES / 8;
+      LongBuffer[] chunks = new LongBuffer[(int) ((length + (long) per - 1) / per)];
+      for (int k = 0; k < chunks.length; k++) chunks[k] =
+        this.allocate(8L * Math.min(per, length - (long) k * per))
+          .order(ByteOrder.nativeOrder())
+          .asLongBuffer();
+      return new BufferLongs(chunks, length);
+    }
+
+    @Override
+    Ints ints(int length) {
+      int per = CHUNK_BYTES / 4;
+      IntBuffer[] chunks = new IntBuffer[(int) ((length + (long) per - 1) / per)];
+      for (int k = 0; k < chunks.length; k++) chunks[k] =
+        this.allocate(4L * Math.min(per, length - (long) k * per))
+          .order(ByteOrder.nativeOrder())
+          .asIntBuffer();
+      return new BufferInts(chunks, length);
+    }
+
+    @Override
+    Ints bytes(int length) {
+      ByteBuffer[] chunks = new ByteBuffer[(int) ((length + (long) CHUNK_BYTES - 1) / CHUNK_BYTES)];
+      for (int k = 0; k < chunks.length; k++) chunks[k] =
+        this.allocate(Math.min(CHUNK_BYTES, length - (long) k * CHUNK_BYTES));
+      return new BufferBytes(chunks, length);
+    }
+
+    @Override
+    Ints chars(int length) {
+      int per = CHUNK_BYTES / 2;
+      CharBuffer[] chunks = new CharBuffer[(int) ((length + (long) per - 1) / per)];
+      for (int k = 0; k < chunks.length; k++) chunks[k] =
+        this.allocate(2L * Math.min(per, length - (long) k * per))
+          .order(ByteOrder.nativeOrder())
+          .asCharBuffer();
+      return new BufferChars(chunks, length);
+    }
+  }
+
+  /** Fixed-length array of longs. */
+  abstract static class Longs {
+    abstract int length();
+
+    abstract long get(int i);
+
+    abstract void set(int i, long value);
+
+    abstract void fill(int from, int to, long value);
+
+    /** Copy values into [offset, offset + values.length). */
+    abstract void put(int offset, long[] values);
+
+    /** The first length values. */
+    abstract long[] toArray(int length);
+
+    /** Copy [from, from + length) into buffer, at its position. */
+    void get(int from, LongBuffer buffer, int length) {
+      for (int k = 0; k < length; k++) buffer.put(this.get(from + k));
+    }
+
+    /** Copy [from, from + length) to [to, to + length), which must not overlap. */
+    void copy(int from, int to, int length) {
+      for (int k = 0; k < length; k++) this.set(to + k, this.get(from + k));
+    }
+
+    /** Copy all of source, which is at least as long, into this array. */
+    void copyFrom(Longs source) {
+      for (int i = 0; i < this.length(); i++) this.set(i, source.get(i));
+    }
+
+    /** A copy on the heap. */
+    Longs copy() {
+      return new HeapLongs(this.toArray(this.length()));
+    }
+  }
+
+  /**
+   * Fixed-length array of ints. Narrow implementations store the low bits
+   * only: decrementing a zero byte counter gives -1 and leaves 255 behind.
+   */
+  abstract static class Ints {
+    abstract int length();
+
+    abstract int get(int i);
+
+    abstract void set(int i, int value);
+
+    /** Decrement entry i and return the new value. */
+    abstract int decrement(int i);
+
+    abstract void fill(int from, int to, int value);
+
+    /** Copy values into [offset, offset + values.length). */
+    abstract void put(int offset, int[] values);
+
+    /** The first length values. */
+    abstract int[] toArray(int length);
+
+    /** Copy [from, from + length) into buffer, at its position. */
+    void get(int from, IntBuffer buffer, int length) {
+      for (int k = 0; k < length; k++) buffer.put(this.get(from + k));
+    }
+
+    /** Copy [from, from + length) to [to, to + length), which must not overlap. */
+    void copy(int from, int to, int length) {
+      for (int k = 0; k < length; k++) this.set(to + k, this.get(from + k));
+    }
+
+    /** Copy all of source, which is at least as long, into this array. */
+    void copyFrom(Ints source) {
+      for (int i = 0; i < this.length(); i++) this.set(i, source.get(i));
+    }
+
+    /** A copy on the heap, as wide as this array. */
+    Ints copy() {
+      return new HeapInts(this.toArray(this.length()));
+    }
+  }
+
+  static final class HeapLongs extends Longs {
+    private final long[] a;
+
+    HeapLongs(long[] a) {
+      this.a = a;
+    }
+
+    @Override
+    int length() {
+      return this.a.length;
+    }
+
+    @Override
+    long get(int i) {
+      return this.a[i];
+    }
+
+    @Override
+    void set(int i, long value) {
+      this.a[i] = value;
+    }
+
+    @Override
+    void fill(int from, int to, long value) {
+      Arrays.fill(this.a, from, to, value);
+    }
+
+    @Override
+    void put(int offset, long[] values) {
+      System.arraycopy(values, 0, this.a, offset, values.length);
+    }
+
+    @Override
+    long[] toArray(int length) {
+      return Arrays.copyOf(this.a, length);
+    }
+
+    @Override
+    void get(int from, LongBuffer buffer, int length) {
+      buffer.put(this.a, from, length);
+    }
+
+    @Override
+    void copy(int from, int to, int length) {
+      System.arraycopy(this.a, from, this.a, to, length);
+    }
+
+    @Override
+    void copyFrom(Longs source) {
+      if (source instanceof HeapLongs) System.arraycopy(
+        ((HeapLongs) source).a,
+        0,
+        this.a,
+        0,
+        this.a.length
+      ); else super.copyFrom(source);
+    }
+
+    @Override
+    Longs copy() {
+      return new HeapLongs(this.a.clone());
+    }
+  }
+
+  static final class HeapInts extends Ints {
+    private final int[] a;
+
+    HeapInts(int[] a) {
+      this.a = a;
+    }
+
+    @Override
+    int length() {
+      return this.a.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.a[i];
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.a[i] = value;
+    }
+
+    @Override
+    int decrement(int i) {
+      return --this.a[i];
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      Arrays.fill(this.a, from, to, value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      System.arraycopy(values, 0, this.a, offset, values.length);
+    }
+
+    @Override
+    int[] toArray(int length) {
+      return Arrays.copyOf(this.a, length);
+    }
+
+    @Override
+    void get(int from, IntBuffer buffer, int length) {
+      buffer.put(this.a, from, length);
+    }
+
+    @Override
+    void copy(int from, int to, int length) {
+      System.arraycopy(this.a, from, this.a, to, length);
+    }
+
+    @Override
+    void copyFrom(Ints source) {
+      if (source instanceof HeapInts) System.arraycopy(
+        ((HeapInts) source).a,
+        0,
+        this.a,
+        0,
+        this.a.length
+      ); else super.copyFrom(source);
+    }
+
+    @Override
+    Ints copy() {
+      return new HeapInts(this.a.clone());
+    }
+  }
+
+  static final class HeapBytes extends Ints {
+    private final byte[] a;
+
+    HeapBytes(byte[] a) {
+      this.a = a;
+    }
+
+    @Override
+    int length() {
+      return this.a.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.a[i] & 0xff;
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.a[i] = (byte) value;
+    }
+
+    @Override
+    int decrement(int i) {
+      int value = (this.a[i] & 0xff) - 1;
+      this.a[i] = (byte) value;
+      return value;
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      Arrays.fill(this.a, from, to, (byte) value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      for (int k = 0; k < values.length; k++) this.a[offset + k] = (byte) values[k];
+    }
+
+    @Override
+    int[] toArray(int length) {
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) values[i] = this.a[i] & 0xff;
+      return values;
+    }
+
+    @Override
+    void copy(int from, int to, int length) {
+      System.arraycopy(this.a, from, this.a, to, length);
+    }
+
+    @Override
+    void copyFrom(Ints source) {
+      if (source instanceof HeapBytes) System.arraycopy(
+        ((HeapBytes) source).a,
+        0,
+        this.a,
+        0,
+        this.a.length
+      ); else super.copyFrom(source);
+    }
+
+    @Override
+    Ints copy() {
+      return new HeapBytes(this.a.clone());
+    }
+  }
+
+  static final class HeapChars extends Ints {
+    private final char[] a;
+
+    HeapChars(char[] a) {
+      this.a = a;
+    }
+
+    @Override
+    int length() {
+      return this.a.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.a[i];
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.a[i] = (char) value;
+    }
+
+    @Override
+    int decrement(int i) {
+      int value = this.a[i] - 1;
+      this.a[i] = (char) value;
+      return value;
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      Arrays.fill(this.a, from, to, (char) value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      for (int k = 0; k < values.length; k++) this.a[offset + k] = (char) values[k];
+    }
+
+    @Override
+    int[] toArray(int length) {
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) values[i] = this.a[i];
+      return values;
+    }
+
+    @Override
+    void copy(int from, int to, int length) {
+      System.arraycopy(this.a, from, this.a, to, length);
+    }
+
+    @Override
+    void copyFrom(Ints source) {
+      if (source instanceof HeapChars) System.arraycopy(
+        ((HeapChars) source).a,
+        0,
+        this.a,
+        0,
+        this.a.length
+      ); else super.copyFrom(source);
+    }
+
+    @Override
+    Ints copy() {
+      return new HeapChars(this.a.clone());
+    }
+  }
+
+  static final class BufferLongs extends Longs {
+    private static final int SHIFT = 27, MASK = (1 << SHIFT) - 1;
+
+    private final LongBuffer[] chunks;
+    private final int length;
+
+    BufferLongs(LongBuffer[] chunks, int length) {
+      this.chunks = chunks;
+      this.length = length;
+    }
+
+    @Override
+    int length() {
+      return this.length;
+    }
+
+    @Override
+    long get(int i) {
+      return this.chunks[i >>> SHIFT].get(i & MASK);
+    }
+
+    @Override
+    void set(int i, long value) {
+      this.chunks[i >>> SHIFT].put(i & MASK, value);
+    }
+
+    @Override
+    void fill(int from, int to, long value) {
+      for (int i = from; i < to; i++) this.set(i, value);
+    }
+
+    @Override
+    void put(int offset, long[] values) {
+      for (int k = 0; k < values.length; k++) this.set(offset + k, values[k]);
+    }
+
+    @Override
+    long[] toArray(int length) {
+      long[] values = new long[length];
+      for (int i = 0; i < length; i++) values[i] = this.get(i);
+      return values;
+    }
+  }
+
+  static final class BufferInts extends Ints {
+    private static final int SHIFT = 28, MASK = (1 << SHIFT) - 1;
+
+    private final IntBuffer[] chunks;
+    private final int length;
+
+    BufferInts(IntBuffer[] chunks, int length) {
+      this.chunks = chunks;
+      this.length = length;
+    }
+
+    @Override
+    int length() {
+      return this.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.chunks[i >>> SHIFT].get(i & MASK);
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.chunks[i >>> SHIFT].put(i & MASK, value);
+    }
+
+    @Override
+    int decrement(int i) {
+      IntBuffer chunk = this.chunks[i >>> SHIFT];
+      int value = chunk.get(i & MASK) - 1;
+      chunk.put(i & MASK, value);
+      return value;
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      for (int i = from; i < to; i++) this.set(i, value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      for (int k = 0; k < values.length; k++) this.set(offset + k, values[k]);
+    }
+
+    @Override
+    int[] toArray(int length) {
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) values[i] = this.get(i);
+      return values;
+    }
+  }
+
+  static final class BufferBytes extends Ints {
+    private static final int SHIFT = 30, MASK = (1 << SHIFT) - 1;
+
+    private final ByteBuffer[] chunks;
+    private final int length;
+
+    BufferBytes(ByteBuffer[] chunks, int length) {
+      this.chunks = chunks;
+      this.length = length;
+    }
+
+    @Override
+    int length() {
+      return this.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.chunks[i >>> SHIFT].get(i & MASK) & 0xff;
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.chunks[i >>> SHIFT].put(i & MASK, (byte) value);
+    }
+
+    @Override
+    int decrement(int i) {
+      ByteBuffer chunk = this.chunks[i >>> SHIFT];
+      int value = (chunk.get(i & MASK) & 0xff) - 1;
+      chunk.put(i & MASK, (byte) value);
+      return value;
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      for (int i = from; i < to; i++) this.set(i, value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      for (int k = 0; k < values.length; k++) this.set(offset + k, values[k]);
+    }
+
+    @Override
+    int[] toArray(int length) {
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) values[i] = this.get(i);
+      return values;
+    }
+  }
+
+  static final class BufferChars extends Ints {
+    private static final int SHIFT = 29, MASK = (1 << SHIFT) - 1;
+
+    private final CharBuffer[] chunks;
+    private final int length;
+
+    BufferChars(CharBuffer[] chunks, int length) {
+      this.chunks = chunks;
+      this.length = length;
+    }
+
+    @Override
+    int length() {
+      return this.length;
+    }
+
+    @Override
+    int get(int i) {
+      return this.chunks[i >>> SHIFT].get(i & MASK);
+    }
+
+    @Override
+    void set(int i, int value) {
+      this.chunks[i >>> SHIFT].put(i & MASK, (char) value);
+    }
+
+    @Override
+    int decrement(int i) {
+      CharBuffer chunk = this.chunks[i >>> SHIFT];
+      int value = chunk.get(i & MASK) - 1;
+      chunk.put(i & MASK, (char) value);
+      return value;
+    }
+
+    @Override
+    void fill(int from, int to, int value) {
+      for (int i = from; i < to; i++) this.set(i, value);
+    }
+
+    @Override
+    void put(int offset, int[] values) {
+      for (int k = 0; k < values.length; k++) this.set(offset + k, values[k]);
+    }
+
+    @Override
+    int[] toArray(int length) {
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) values[i] = this.get(i);
+      return values;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Tiles, tile frequencies and adjacency learned from text inputs cut into
+ * chunkWidth x chunkHeight chunks (smaller at the right and bottom edges).
+ * Chunks are identified by a hash of their characters, confirmed by an exact
+ * comparison, so no String is built per chunk. Tile ids follow the order of
+ * first occurrence, file by file.
+ */
+public class TextCorpus {
+
+    final int chunkWidth, chunkHeight;
+    final List<char[][]> tiles = new ArrayList<>();
+    private long[] hashes = new long[16];
+    int[] frequencies = new int[16];
+
+    // Open addressing table from chunk hash to tile id, -1 marks empty slots.
+    private int[] slots = new int[64];
+
+    // Pairs (a << 32 | b) seen in the input: b right of a, and b below a.
+    final LongSet horizontal = new LongSet();
+    final LongSet vertical = new LongSet();
+
+    private TextCorpus(int chunkWidth, int chunkHeight) {
+        this.chunkWidth = chunkWidth;
+        this.chunkHeight = chunkHeight;
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Learn from text files. Every file is memory-mapped and read as one byte
+     * per character (ASCII or Latin-1); lines end at '\n' with an optional
+     * '\r', and the first line sets the width. Files are scanned in parallel
+     * and their tables merged.
+     */
+    public static TextCorpus load(List<Path> files, int chunkWidth, int chunkHeight) throws IOException {
+        try {
+            return files.parallelStream()
+                    .map(file -> scan(mapped(file), chunkWidth, chunkHeight))
+                    .reduce(TextCorpus::merge)
+                    .orElseGet(() -> new TextCorpus(chunkWidth, chunkHeight));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Learn from a single input already in memory. */
+    public static TextCorpus of(char[][] input, int chunkWidth, int chunkHeight) {
+        return scan(new Source() {
+            int height() { return input.length; }
+            int width() { return input.length == 0 ? 0 : input[0].length; }
+            char charAt(int y, int x) { return x < input[y].length ? input[y][x] : ' '; }
+        }, chunkWidth, chunkHeight);
+    }
+
+    public int tileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Fingerprint of the tiles, their frequencies and the adjacent pairs,
+     * equal for corpora that yield the same model.
+     */
+    long rulesHash() {
+        long hash = 1125899906842597L;
+        hash = 31 * hash + chunkWidth;
+        hash = 31 * hash + chunkHeight;
+        for (int t = 0; t < tiles.size(); t++) hash = 31 * (31 * hash + hashes[t]) + frequencies[t];
+        long[] pairs = {0, 0};
+        horizontal.forEach(p -> pairs[0] += mix(p));
+        vertical.forEach(p -> pairs[1] += mix(p));
+        return 31 * (31 * hash + pairs[0]) + pairs[1];
+    }
+
+    private static TextCorpus scan(Source source, int chunkWidth, int chunkHeight) {
+        TextCorpus corpus = new TextCorpus(chunkWidth, chunkHeight);
+        int width = source.width(), height = source.height();
+        int gridWidth = (width + chunkWidth - 1) / chunkWidth;
+
+        long[] hash = new long[gridWidth];
+        int[] row = new int[gridWidth], above = new int[gridWidth];
+
+        for (int y0 = 0; y0 < height; y0 += chunkHeight) {
+            int h = Math.min(chunkHeight, height - y0);
+            for (int cx = 0; cx < gridWidth; cx++)
+                hash[cx] = seed(Math.min(chunkWidth, width - cx * chunkWidth), h);
+
+            for (int y = y0; y < y0 + h; y++)
+                for (int cx = 0, x = 0; cx < gridWidth; cx++) {
+                    long k = hash[cx];
+                    for (int end = Math.min(x + chunkWidth, width); x < end; x++)
+                        k = k * 1000003 + source.charAt(y, x);
+                    hash[cx] = k;
+                }
+
+            for (int cx = 0; cx < gridWidth; cx++) {
+                int t = corpus.intern(hash[cx], source, cx * chunkWidth, y0,
+                        Math.min(chunkWidth, width - cx * chunkWidth), h);
+                corpus.frequencies[t]++;
+                if (cx > 0) corpus.horizontal.add(pair(row[cx - 1], t));
+                if (y0 > 0) corpus.vertical.add(pair(above[cx], t));
+                row[cx] = t;
+            }
+
+            int[] swap = above;
+            above = row;
+            row = swap;
+        }
+        return corpus;
+    }
+
+    private int intern(long hash, Source source, int x0, int y0, int w, int h) {
+        int mask = slots.length - 1;
+        for (int s = mix(hash) & mask; ; s = (s + 1) & mask) {
+            int t = slots[s];
+            if (t < 0) {
+                char[][] tile = new char[h][w];
+                for (int dy = 0; dy < h; dy++)
+                    for (int dx = 0; dx < w; dx++) tile[dy][dx] = source.charAt(y0 + dy, x0 + dx);
+                return add(s, hash, tile);
+            }
+            if (hashes[t] == hash && matches(tiles.get(t), source, x0, y0, w, h)) return t;
+        }
+    }
+
+    private int intern(long hash, char[][] tile) {
+        int mask = slots.length - 1;
+        for (int s = mix(hash) & mask; ; s = (s + 1) & mask) {
+            int t = slots[s];
+            if (t < 0) return add(s, hash, tile);
+            if (hashes[t] == hash && Arrays.deepEquals(tiles.get(t), tile)) return t;
+        }
+    }
+
+    private int add(int slot, long hash, char[][] tile) {
+        int t = tiles.size();
+        tiles.add(tile);
+        if (t == hashes.length) {
+            hashes = Arrays.copyOf(hashes, 2 * t);
+            frequencies = Arrays.copyOf(frequencies, 2 * t);
+        }
+        hashes[t] = hash;
+        slots[slot] = t;
+
+        if (2 * tiles.size() > slots.length) {
+            slots = new int[2 * slots.length];
+            Arrays.fill(slots, -1);
+            int mask = slots.length - 1;
+            for (int u = 0; u < tiles.size(); u++) {
+                int s = mix(hashes[u]) & mask;
+                while (slots[s] >= 0) s = (s + 1) & mask;
+                slots[s] = u;
+            }
+        }
+        return t;
+    }
+
+    private static boolean matches(char[][] tile, Source source, int x0, int y0, int w, int h) {
+        if (tile.length != h || tile[0].length != w) return false;
+        for (int dy = 0; dy < h; dy++)
+            for (int dx = 0; dx < w; dx++)
+                if (tile[dy][dx] != source.charAt(y0 + dy, x0 + dx)) return false;
+        return true;
+    }
+
+    /** Fold the tables of other into this one, renumbering its tiles. */
+    private TextCorpus merge(TextCorpus other) {
+        int[] remap = new int[other.tiles.size()];
+        for (int t = 0; t < remap.length; t++) {
+            remap[t] = intern(other.hashes[t], other.tiles.get(t));
+            frequencies[remap[t]] += other.frequencies[t];
+        }
+        other.horizontal.forEach(p -> horizontal.add(pair(remap[(int) (p >>> 32)], remap[(int) p])));
+        other.vertical.forEach(p -> vertical.add(pair(remap[(int) (p >>> 32)], remap[(int) p])));
+        return this;
+    }
+
+    private static long seed(int w, int h) {
+        return ((long) w << 32) | h;
+    }
+
+    private static int mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return (int) k;
+    }
+
+    static long pair(int a, int b) {
+        return ((long) a << 32) | b;
+    }
+
+    private static Source mapped(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Input too large to map: " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int[] starts = new int[64], ends = new int[64];
+            int lines = 0;
+            for (int start = 0; start < size; ) {
+                int end = start;
+                while (end < size && buffer.get(end) != '\n') end++;
+                int next = end + 1;
+                if (end > start && buffer.get(end - 1) == '\r') end--;
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * lines);
+                    ends = Arrays.copyOf(ends, 2 * lines);
+                }
+                starts[lines] = start;
+                ends[lines] = end;
+                lines++;
+                start = next;
+            }
+
+            int height = lines;
+            int[] s = starts, e = ends;
+            return new Source() {
+                int height() { return height; }
+                int width() { return height == 0 ? 0 : e[0] - s[0]; }
+                char charAt(int y, int x) {
+                    int i = s[y] + x;
+                    return i < e[y] ? (char) (buffer.get(i) & 0xff) : ' ';
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Rows of characters; positions past the end of a row read as ' '. */
+    private abstract static class Source {
+        abstract int height();
+        abstract int width();
+        abstract char charAt(int y, int x);
+    }
+
+    /** Open addressing set of non-negative longs. */
+    static final class LongSet {
+        private long[] table = new long[64];
+        private int size;
+        private long last = -1;
+
+        LongSet() {
+            Arrays.fill(table, -1);
+        }
+
+        void add(long key) {
+            // Runs of the same pair are common in level data.
+            if (key == last) return;
+            last = key;
+
+            int mask = table.length - 1;
+            int s = mix(key) & mask;
+            while (table[s] >= 0) {
+                if (table[s] == key) return;
+                s = (s + 1) & mask;
+            }
+            table[s] = key;
+            if (2 * ++size > table.length) {
+                long[] old = table;
+                table = new long[2 * old.length];
+                Arrays.fill(table, -1);
+                size = 0;
+                last = -1;
+                for (long k : old) if (k >= 0) add(k);
+            }
+        }
+
+        void forEach(LongConsumer action) {
+            for (long k : table) if (k >= 0) action.accept(k);
+        }
+    }
+}
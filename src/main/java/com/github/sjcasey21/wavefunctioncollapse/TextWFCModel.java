@@ -1,50 +1,97 @@
 package com.github.sjcasey21.wavefunctioncollapse;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
-public class TextWFCModel {
+public class TextWFCModel implements CellSelector.Wave {
 
     private final int outputWidth, outputHeight, chunkWidth, chunkHeight;
-    private final char[][] input;
-    private int[][] inputAsTiles;
     private final char[][] finalOutput;
-    private final List<char[][]> tiles = new ArrayList<>();
-    private final Map<String, Integer> tileIds = new HashMap<>();
-    private final Map<Integer, Integer> tileFrequencies = new HashMap<>();
-
-    private final boolean[][][] wave;
+    private final List<char[][]> tiles;
+    private double[] weights;
+    private int tileCount;
+    private Reduction reduction;
+
+    // Tiles still possible in every cell as a bitset of W words per cell,
+    // cells in the order x + y * gridWidth.
+    private final long[] wave;
+    private final int W;
+    // masks[(d * tileCount + t) * W + w]: tiles allowed next to t in direction d.
+    private final long[] masks;
     private final boolean[][] observed;
-    private final Stack<Point> stack = new Stack<>();
+    private final int[] counts;
+    private final double[] sums;
+    private boolean contradiction;
+    private CellSelector selector = CellSelector.entropy();
+    private BooleanSupplier stop;
+    // Cells whose neighbours must be checked again; pending marks those
+    // already on the stack.
+    private final int[] stack;
+    private final long[] pending;
+    private int stacksize;
     private final Random random = new Random();
     private final Map<Integer, Set<Integer>>[] adjacencyRules = new HashMap[4];
 
     private int gridWidth, gridHeight;
     private final Set<Integer>[] borderTileKinds = new HashSet[4];
+    private final boolean verbose;
 
     public TextWFCModel(char[][] inputChars, int outputWidth, int outputHeight, int chunkWidth, int chunkHeight) {
-        this.chunkWidth = chunkWidth;
-        this.chunkHeight = chunkHeight;
-        this.input = inputChars;
+        this(TextCorpus.of(inputChars, chunkWidth, chunkHeight), outputWidth, outputHeight);
+    }
+
+    public TextWFCModel(TextCorpus corpus, int outputWidth, int outputHeight) {
+        this(corpus, outputWidth, outputHeight, false);
+    }
+
+    /**
+     * @param verbose Print the grid, the rules and the wave after every
+     * observation to stdout while generating.
+     */
+    public TextWFCModel(TextCorpus corpus, int outputWidth, int outputHeight, boolean verbose) {
+        this.verbose = verbose;
+        this.chunkWidth = corpus.chunkWidth;
+        this.chunkHeight = corpus.chunkHeight;
+        this.tiles = corpus.tiles;
         this.outputWidth = outputWidth;
         this.outputHeight = outputHeight;
 
         this.gridWidth = (int) Math.ceil((double) outputWidth / chunkWidth);
         this.gridHeight = (int) Math.ceil((double) outputHeight / chunkHeight);
-        System.out.println("Grid dimensions: " + gridWidth + "x" + gridHeight);
+        if (verbose) System.out.println("Grid dimensions: " + gridWidth + "x" + gridHeight);
 
         this.finalOutput = new char[outputHeight][outputWidth];
         for (int y = 0; y < outputHeight; y++) Arrays.fill(finalOutput[y], '.');
 
-        extractTiles();
-        inferAdjacency();
+        inferAdjacency(corpus);
+        int[][][] rows = reduce(corpus);
 
-        int tileCount = tiles.size();
-        wave = new boolean[gridHeight][gridWidth][tileCount];
+        W = (tileCount + 63) >>> 6;
+        masks = new long[4 * tileCount * W];
+        for (int d = 0; d < 4; d++) {
+            for (int t = 0; t < tileCount; t++) {
+                int base = (d * tileCount + t) * W;
+                for (int u : rows[d][t]) masks[base + (u >>> 6)] |= 1L << u;
+            }
+        }
+
+        int cells = gridWidth * gridHeight;
+        double total = 0;
+        for (double weight : weights) total += weight;
+        wave = new long[cells * W];
+        for (int i = 0; i < cells; i++)
+            for (int t = 0; t < tileCount; t++) wave[i * W + (t >>> 6)] |= 1L << t;
         observed = new boolean[gridHeight][gridWidth];
-        for (int y = 0; y < gridHeight; y++)
-            for (int x = 0; x < gridWidth; x++)
-                Arrays.fill(wave[y][x], true);
+        counts = new int[cells];
+        Arrays.fill(counts, tileCount);
+        sums = new double[cells];
+        Arrays.fill(sums, total);
+        stack = new int[cells];
+        pending = new long[(cells + 63) >>> 6];
+        selector.reset(this);
 
         for (int i = 0; i < 4; i++) borderTileKinds[i] = new HashSet<>();
         for (int t = 0; t < tiles.size(); t++) {
@@ -59,208 +106,266 @@ public class TextWFCModel {
             }
         }
 
-        for (int d = 0; d < 4; d++)
-            System.out.println("Direction " + d + " border tiles: " + borderTileKinds[d]);
-
         // REMOVE overly aggressive bans — do NOT ban at this point
 
-        System.out.println("Valid tile count per cell (pre-propagation):");
-        for (int y = 0; y < gridHeight; y++) {
-            for (int x = 0; x < gridWidth; x++) {
-                int count = 0;
-                for (int t = 0; t < tiles.size(); t++) if (wave[y][x][t]) count++;
-                System.out.print(count + " ");
+        if (verbose) {
+            for (int d = 0; d < 4; d++)
+                System.out.println("Direction " + d + " border tiles: " + borderTileKinds[d]);
+
+            System.out.println("Valid tile count per cell (pre-propagation):");
+            for (int y = 0; y < gridHeight; y++) {
+                for (int x = 0; x < gridWidth; x++) {
+                    int count = 0;
+                    for (int t = 0; t < tileCount; t++) if (possible(x + y * gridWidth, t)) count++;
+                    System.out.print(count + " ");
+                }
+                System.out.println();
             }
-            System.out.println();
         }
 
         propagate();
-        printCompleteWave();
+        if (verbose) printCompleteWave();
     }
 
-    private void extractTiles() {
-        int inputTileWidth = (int) Math.ceil((double) input[0].length / chunkWidth);
-        int inputTileHeight = (int) Math.ceil((double) input.length / chunkHeight);
-        inputAsTiles = new int[inputTileHeight][inputTileWidth];
-        AtomicInteger idCounter = new AtomicInteger(0);
-        for (int y = 0, tiley=0; y < input.length; y+=chunkHeight, tiley++) {
-            for (int x = 0,tilex=0; x < input[0].length; x+=chunkWidth, tilex++) {
-                int maxChunkHeight = Math.min(chunkHeight, input.length - y);
-                int maxChunkWidth = Math.min(chunkWidth, input[0].length - x);
-
-                if (maxChunkHeight <= 0 || maxChunkWidth <= 0) continue;
-
-                char[][] chunk = new char[maxChunkHeight][maxChunkWidth];
-                for (int dy = 0; dy < maxChunkHeight; dy++) {
-                    for (int dx = 0; dx < maxChunkWidth; dx++) {
-                        chunk[dy][dx] = input[y + dy][x + dx];
-                    }
-                }
-                String key = Arrays.deepToString(chunk);
-                int tileId = tileIds.computeIfAbsent(key, k -> {
-                    tiles.add(chunk);
-                    System.out.println("Adding tileID: " + idCounter.get());
-                    for (char[] row : chunk) {
-                        for (char value : row) {
-                           System.out.print(value);
-                        }
-                        System.out.println();
-                    }
-                    return idCounter.getAndIncrement();
-                });
-                tileFrequencies.put(tileId, tileFrequencies.getOrDefault(tileId, 0) + 1);
-                inputAsTiles[tiley][tilex] = tileId;
-            }
-        }
+    private void inferAdjacency(TextCorpus corpus) {
+        if (verbose) System.out.println("Calculating adjacency rules...");
+        for (int i = 0; i < 4; i++) adjacencyRules[i] = new HashMap<>();
+        corpus.horizontal.forEach(p -> { // b is right of a
+            int a = (int) (p >>> 32), b = (int) p;
+            adjacencyRules[1].computeIfAbsent(a, k -> new HashSet<>()).add(b);
+            adjacencyRules[3].computeIfAbsent(b, k -> new HashSet<>()).add(a);
+        });
+        corpus.vertical.forEach(p -> { // b is below a
+            int a = (int) (p >>> 32), b = (int) p;
+            adjacencyRules[2].computeIfAbsent(a, k -> new HashSet<>()).add(b);
+            adjacencyRules[0].computeIfAbsent(b, k -> new HashSet<>()).add(a);
+        });
+        if (verbose) System.out.println("Completed adjacency rules calculation.");
     }
 
-    private void inferAdjacency() {
-        System.out.println("Calculating adjacency rules...");
-        for (int y=0; y<inputAsTiles.length; y++) {
-            for (int x=0; x<inputAsTiles[0].length; x++) {
-                System.out.print("["+inputAsTiles[y][x]+"]");
-            }
-            System.out.println();
+    // Drop tiles that fit nowhere and merge tiles with the same rules, see
+    // Reduction. Wave indices are classes of tiles from then on. Returns the
+    // rows between them. A tile never seen with a neighbour on some side
+    // gets an empty row there, so it can only be placed along that edge.
+    private int[][][] reduce(TextCorpus corpus) {
+        int count = corpus.tileCount();
+        int[][][] rows = new int[4][count][];
+        for (int d = 0; d < 4; d++) {
+            Arrays.fill(rows[d], new int[0]);
+            for (Map.Entry<Integer, Set<Integer>> e : adjacencyRules[d].entrySet())
+                rows[d][e.getKey()] = e.getValue().stream().mapToInt(Integer::intValue).sorted().toArray();
         }
-        System.out.println("Completed adjacency rules calculation.");
-        for (int i = 0; i < 4; i++) adjacencyRules[i] = new HashMap<>();
-        for (int y = 0; y < inputAsTiles.length; y++) {
-            for (int x = 0; x < inputAsTiles[0].length; x++) {
-                int tileId = inputAsTiles[y][x];
-                if (y > 0) { // Up
-                    int upTileId = inputAsTiles[y - 1][x];
-                    adjacencyRules[0].computeIfAbsent(tileId, k -> new HashSet<>()).add(upTileId);
-                }
-                if (x < inputAsTiles[0].length - 1) { // Right
-                    int rightTileId = inputAsTiles[y][x + 1];
-                    adjacencyRules[1].computeIfAbsent(tileId, k -> new HashSet<>()).add(rightTileId);
-                }
-                if (y < inputAsTiles.length - 1) { // Down
-                    int downTileId = inputAsTiles[y + 1][x];
-                    adjacencyRules[2].computeIfAbsent(tileId, k -> new HashSet<>()).add(downTileId);
-                }
-                if (x > 0) { // Left
-                    int leftTileId = inputAsTiles[y][x - 1];
-                    adjacencyRules[3].computeIfAbsent(tileId, k -> new HashSet<>()).add(leftTileId);
-                }
-            }
+        double[] weights = new double[count];
+        for (int t = 0; t < count; t++) weights[t] = corpus.frequencies[t];
+
+        reduction = Reduction.of(weights, rows, false, new int[]{gridHeight, gridWidth, gridHeight, gridWidth}, -1);
+        if (reduction == null) {
+            tileCount = count;
+            this.weights = weights;
+            return rows;
         }
+
+        tileCount = reduction.T;
+        this.weights = reduction.weights;
+        return reduction.propagator;
+    }
+
+    /** Choose how cells are picked for observation, see {@link CellSelector}. */
+    public void setSelector(CellSelector selector) {
+        this.selector = selector;
     }
 
     public boolean run() {
+        return step();
+    }
+
+    /**
+     * Run the generation on executor, giving up once timeout has passed.
+     * The deadline, and whether the returned future was cancelled, are
+     * checked between observations and during propagation. A model only
+     * generates once.
+     * @param seed Seed for the generation's random choices.
+     * @return Completes with the output; on TIMEOUT or CONTRADICTION only
+     * the cells decided so far are filled in. A generation still waiting for
+     * a thread at its deadline completes with TIMEOUT right then.
+     */
+    public CompletableFuture<Generation<char[][]>> generate(int seed, long timeout, TimeUnit unit, Executor executor) {
+        return Generation.start(timeout, unit, executor, finalOutput, stop -> {
+            this.stop = stop;
+            random.setSeed(seed);
+            try {
+                Generation.Status status = Generation.status(step());
+                if (status != Generation.Status.DONE) reconstructOutput();
+                return new Generation<>(status, finalOutput);
+            } finally {
+                this.stop = null;
+            }
+        });
+    }
+
+    // Returns null if stopped before finishing.
+    private Boolean step() {
+        selector.reset(this);
         while (true) {
+            if (stopped()) return null;
             int[] coords = observe();
             if (coords == null) break;
             if (coords.length == 0) return false;
 
             int y = coords[0], x = coords[1];
-            List<Integer> options = getPossibleTiles(y, x);
-            if (options.isEmpty()) return false;
-
-            int total = 0;
-            for (int opt : options) total += tileFrequencies.getOrDefault(opt, 1);
-            int r = random.nextInt(total);
-            int chosen = options.get(0);
-            for (int opt : options) {
-                r -= tileFrequencies.getOrDefault(opt, 1);
-                if (r < 0) {
-                    chosen = opt;
-                    break;
-                }
-            }
-            System.out.println("Chosen tile at (" + x + ", " + y + "): " + chosen);
-            for (int t = 0; t < tiles.size(); t++) {
-                if (t != chosen) ban(x, y, t);
-            }
-            printCompleteWave();
+            int i = x + y * gridWidth;
+            int chosen = choose(i);
+            if (chosen < 0) return false;
+
+            if (verbose) System.out.println("Chosen tile at (" + x + ", " + y + "): " + chosen);
             observed[y][x] = true;
+            collapse(i, chosen);
+            if (verbose) printCompleteWave();
             propagate();
-            printCompleteWave();
+            if (verbose) printCompleteWave();
         }
 
-        printCurrentWave();
+        if (verbose) printCurrentWave();
         reconstructOutput();
         return true;
     }
 
     private int[] observe() {
-        double minEntropy = Double.POSITIVE_INFINITY;
-        int[] result = null;
-        for (int y = 0; y < gridHeight; y++) {
-            for (int x = 0; x < gridWidth; x++) {
-                if (observed[y][x]) continue;
-                List<Integer> options = getPossibleTiles(y, x);
-                if (options.isEmpty()) return new int[0];
-                if (options.size() == 1) continue;
-                double entropy = Math.log(options.size()) + random.nextDouble() * 1e-6;
-                if (entropy < minEntropy) {
-                    minEntropy = entropy;
-                    result = new int[]{y, x};
-                }
-            }
-        }
-        return result;
+        if (contradiction) return new int[0];
+        int i = selector.next();
+        return i < 0 ? null : new int[]{i / gridWidth, i % gridWidth};
+    }
+
+    @Override
+    public int width() {
+        return gridWidth;
+    }
+
+    @Override
+    public int height() {
+        return gridHeight;
+    }
+
+    @Override
+    public int depth() {
+        return 1;
+    }
+
+    @Override
+    public boolean observable(int i) {
+        return !observed[i / gridWidth][i % gridWidth];
+    }
+
+    @Override
+    public int remaining(int i) {
+        return counts[i];
+    }
+
+    @Override
+    public double entropy(int i) {
+        return Math.log(counts[i]);
+    }
+
+    @Override
+    public Random random() {
+        return random;
+    }
+
+    private boolean stopped() {
+        return stop != null && stop.getAsBoolean();
+    }
+
+    private boolean possible(int i, int t) {
+        return (wave[i * W + (t >>> 6)] & (1L << t)) != 0;
     }
 
     private void propagate() {
-        while (!stack.isEmpty()) {
-            Point p = stack.pop();
-            //printCompleteWave();
-            //System.out.println("Propagating from point: " + p.x + ", " + p.y + ", " + p.z);
-            int x = p.x, y = p.y, t = p.z;
+        long[] union = new long[W];
+        for (int steps = 1; stacksize > 0; steps++) {
+            if ((steps & 0xff) == 0 && stopped()) return;
+            int i = stack[--stacksize];
+            pending[i >>> 6] &= ~(1L << i);
+            int x = i % gridWidth, y = i / gridWidth;
             for (int dir = 0; dir < 4; dir++) {
                 int dx = (dir == 1) ? 1 : (dir == 3) ? -1 : 0;
                 int dy = (dir == 2) ? 1 : (dir == 0) ? -1 : 0;
                 int nx = x + dx, ny = y + dy;
                 if (nx < 0 || ny < 0 || nx >= gridWidth || ny >= gridHeight) continue;
 
-                for (int t2 = 0; t2 < tiles.size(); t2++) {
-                    if (!wave[ny][nx][t2]) continue;
-                    boolean valid = false;
-                    for (int t3 = 0; t3 < tiles.size(); t3++) {
-                        if (!wave[y][x][t3]) continue;
-
-                        // Allow t2 if t3 has no known adjacents in this direction
-                        Set<Integer> adj = adjacencyRules[dir].get(t3);
-                        if (adj == null || adj.isEmpty() || adj.contains(t2)) {
-                            valid = true;
-                            break;
-                        }
+                // Tiles allowed next to any tile still possible here, the
+                // neighbour loses the rest.
+                Arrays.fill(union, 0);
+                for (int w = 0; w < W; w++) {
+                    for (long bits = wave[i * W + w]; bits != 0; bits &= bits - 1) {
+                        int t = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        int base = (dir * tileCount + t) * W;
+                        for (int w2 = 0; w2 < W; w2++) union[w2] |= masks[base + w2];
                     }
+                }
 
-                    if (!valid) ban(nx, ny, t2);
+                int j = nx + ny * gridWidth;
+                for (int w = 0; w < W; w++) {
+                    for (long bits = wave[j * W + w] & ~union[w]; bits != 0; bits &= bits - 1)
+                        ban(j, (w << 6) + Long.numberOfTrailingZeros(bits));
                 }
             }
         }
     }
 
-    private void ban(int x, int y, int t) {
-        if (!wave[y][x][t]) return;
-        wave[y][x][t] = false;
-        stack.push(new Point(x, y, t));
+    // Weighted by frequency, in one pass over the tiles of the cell.
+    private int choose(int i) {
+        if (counts[i] == 0) return -1;
+
+        double r = random.nextDouble() * sums[i];
+        int last = -1;
+        for (int w = 0; w < W; w++) {
+            for (long bits = wave[i * W + w]; bits != 0; bits &= bits - 1) {
+                int t = (w << 6) + Long.numberOfTrailingZeros(bits);
+                r -= weights[t];
+                if (r <= 0) return t;
+                last = t;
+            }
+        }
+        return last; // Only reached through rounding in the running sum
     }
 
-    private List<Integer> getPossibleTiles(int y, int x) {
-        List<Integer> result = new ArrayList<>();
-        for (int t = 0; t < tiles.size(); t++) {
-            if (wave[y][x][t]) result.add(t);
-        }
-        return result;
+    // Ban every other tile of the cell a word at a time, its neighbours are
+    // then checked once for all of them.
+    private void collapse(int i, int t) {
+        for (int w = 0; w < W; w++) wave[i * W + w] &= w == t >>> 6 ? 1L << t : 0;
+        counts[i] = 1;
+        sums[i] = weights[t];
+        push(i);
+        selector.changed(i);
+    }
+
+    private void ban(int i, int t) {
+        if (!possible(i, t)) return;
+        wave[i * W + (t >>> 6)] &= ~(1L << t);
+        sums[i] -= weights[t];
+        push(i);
+
+        if (--counts[i] == 0 && observable(i)) contradiction = true;
+        selector.changed(i);
+    }
+
+    private void push(int i) {
+        if ((pending[i >>> 6] & (1L << i)) != 0) return;
+        pending[i >>> 6] |= 1L << i;
+        stack[stacksize++] = i;
     }
 
     private void reconstructOutput() {
         for (int y = 0; y < gridHeight; y++) {
             for (int x = 0; x < gridWidth; x++) {
+                if (counts[x + y * gridWidth] != 1) continue; // contradiction or undecided
                 int chosen = -1;
-                for (int t = 0; t < tiles.size(); t++) {
-                    if (wave[y][x][t]) {
-                        chosen = t;
-                        break;
-                    }
+                for (int w = 0; chosen < 0; w++) {
+                    long bits = wave[(x + y * gridWidth) * W + w];
+                    if (bits != 0) chosen = (w << 6) + Long.numberOfTrailingZeros(bits);
                 }
-                if (chosen == -1) continue; // contradiction or uncollapsed
 
-                char[][] tile = tiles.get(chosen);
+                char[][] tile = tiles.get(reduction == null ? chosen : reduction.member(chosen, random));
                 for (int dy = 0; dy < tile.length; dy++) {
                     for (int dx = 0; dx < tile[0].length; dx++) {
                         int fy = y * chunkHeight + dy;
@@ -273,7 +378,7 @@ public class TextWFCModel {
             }
         }
 
-        printFinalOutput();
+        if (verbose) printFinalOutput();
     }
 
 
@@ -288,11 +393,6 @@ public class TextWFCModel {
         return finalOutput;
     }
 
-    private static class Point {
-        int x, y, z;
-        Point(int x, int y, int z) { this.x = x; this.y = y; this.z = z; }
-    }
-
     public void printCurrentWave() {
         System.out.println("Current Wave:");
         for (int y = 0; y < gridHeight; y++) {
@@ -300,8 +400,8 @@ public class TextWFCModel {
                 int obsTile = -1;
                 boolean collapsed = true;
                 System.out.print("[");
-                for (int t = 0; t < tiles.size(); t++) {
-                    if (wave[y][x][t]) {
+                for (int t = 0; t < tileCount; t++) {
+                    if (possible(x + y * gridWidth, t)) {
                         if (obsTile != -1) {
                             collapsed = false;
                         }
@@ -326,8 +426,8 @@ public class TextWFCModel {
             for (int x = 0; x < gridWidth; x++) {
                 int obsTile = -1;
                 System.out.print("[");
-                for (int t = 0; t < tiles.size(); t++) {
-                    if (wave[y][x][t]) {
+                for (int t = 0; t < tileCount; t++) {
+                    if (possible(x + y * gridWidth, t)) {
                         if (obsTile != -1) {
                             System.out.print(","+t);
                         } else {
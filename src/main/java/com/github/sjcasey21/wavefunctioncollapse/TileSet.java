@@ -0,0 +1,354 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Compiled rules of a Simple Tiled Model: the oriented tiles, their weights
+ * and the propagator. A tile set is immutable and can be shared by any
+ * number of SimpleTiledModel instances.
+ */
+public final class TileSet {
+  final int tilesize;
+  final int T;
+  final List<int[]> tiles;
+  final List<String> tilenames;
+  final Double[] weights;
+  final int[][][] propagator;
+
+  private TileSet(
+    int tilesize,
+    List<int[]> tiles,
+    List<String> tilenames,
+    Double[] weights,
+    int[][][] propagator
+  ) {
+    this.tilesize = tilesize;
+    this.T = weights.length;
+    this.tiles = tiles;
+    this.tilenames = tilenames;
+    this.weights = weights;
+    this.propagator = propagator;
+  }
+
+  /**
+   * Load a tile set in the data.xml format (see knot/data.xml). Tile images
+   * are read from "name.png" next to the file, or "name t.png" for every
+   * orientation t when unique is set.
+   * @param path Location of the data.xml file.
+   * @param subsetName Name of the subset to use, null for all tiles.
+   * @param unique Whether every orientation has its own image.
+   */
+  public static TileSet load(Path path, String subsetName, boolean unique)
+    throws IOException {
+    List<Map<String, String>> tileSymmetries = new ArrayList<Map<String, String>>();
+    List<Map<String, String>> neighborData = new ArrayList<Map<String, String>>();
+    Map<String, List<String>> subsets = new HashMap<String, List<String>>();
+    int size = 0;
+
+    try (InputStream in = Files.newInputStream(path)) {
+      XMLStreamReader reader = XMLInputFactory
+        .newInstance()
+        .createXMLStreamReader(in);
+      String section = null;
+      List<String> subset = null;
+
+      while (reader.hasNext()) {
+        int event = reader.next();
+
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          switch (reader.getLocalName()) {
+            case "set":
+              String s = reader.getAttributeValue(null, "size");
+              if (s != null) size = Integer.parseInt(s);
+              String u = reader.getAttributeValue(null, "unique");
+              if ("true".equalsIgnoreCase(u)) unique = true;
+              break;
+            case "tiles":
+            case "neighbors":
+              section = reader.getLocalName();
+              break;
+            case "subset":
+              subset = new ArrayList<String>();
+              subsets.put(reader.getAttributeValue(null, "name"), subset);
+              break;
+            case "tile":
+              if (subset != null) {
+                subset.add(reader.getAttributeValue(null, "name"));
+              } else if ("tiles".equals(section)) {
+                tileSymmetries.add(TileSet.attributes(reader));
+              }
+              break;
+            case "neighbor":
+              neighborData.add(TileSet.attributes(reader));
+              break;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          switch (reader.getLocalName()) {
+            case "subset":
+              subset = null;
+              break;
+            case "tiles":
+            case "neighbors":
+              section = null;
+              break;
+          }
+        }
+      }
+
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Malformed tile set " + path, e);
+    }
+
+    Set<String> wanted = null;
+    if (subsetName != null) {
+      List<String> names = subsets.get(subsetName);
+      if (names == null) throw new IllegalArgumentException(
+        "Unknown subset " + subsetName + " in " + path
+      );
+      wanted = new HashSet<String>(names);
+    }
+
+    Path directory = path.toAbsolutePath().getParent();
+    Map<String, BufferedImage> tileData = new HashMap<String, BufferedImage>();
+
+    for (Map<String, String> xtile : tileSymmetries) {
+      String tilename = xtile.get("name");
+      if (wanted != null && !wanted.contains(tilename)) continue;
+
+      String sym = xtile.getOrDefault("symmetry", "X");
+      int cardinality = unique ? SimpleTiledModel.symmetryActions(sym)[0].length : 1;
+      for (int t = 0; t < cardinality; t++) {
+        String name = unique ? tilename + " " + t : tilename;
+        BufferedImage image = ImageIO.read(
+          directory.resolve(name + ".png").toFile()
+        );
+        if (image == null) throw new IOException(
+          "Could not read tile image " + name + ".png"
+        );
+        tileData.put(name, image);
+        if (size == 0) size = image.getWidth();
+      }
+    }
+
+    return TileSet.compile(
+      size,
+      tileSymmetries,
+      neighborData,
+      wanted,
+      tileData,
+      unique
+    );
+  }
+
+  private static Map<String, String> attributes(XMLStreamReader reader) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (int a = 0; a < reader.getAttributeCount(); a++) result.put(
+      reader.getAttributeLocalName(a),
+      reader.getAttributeValue(a)
+    );
+    return result;
+  }
+
+  /**
+   * Compile a tile set from pre-parsed data.
+   * @param subset Names of the tiles to use, null for all tiles.
+   * @see SimpleTiledModel#SimpleTiledModel(int, List, List, Map, Map, String, int, int, boolean, boolean, boolean)
+   */
+  static TileSet compile(
+    int tilesize,
+    List<Map<String, String>> tileSymmetries,
+    List<Map<String, String>> neighborData,
+    Set<String> subset,
+    Map<String, BufferedImage> tileData,
+    boolean unique
+  ) {
+    List<int[]> tiles = new ArrayList<int[]>();
+    List<String> tilenames = new ArrayList<String>();
+    List<Double> tempStationary = new ArrayList<Double>();
+    Orientations orientations = new Orientations();
+
+    for (Map<String, String> xtile : tileSymmetries) {
+      String tilename = xtile.get("name");
+      if (subset != null && !subset.contains(tilename)) continue;
+
+      int cardinality = orientations.add(
+        tilename,
+        xtile.getOrDefault("symmetry", "X")
+      );
+
+      if (unique) {
+        for (int t = 0; t < cardinality; t++) {
+          BufferedImage image = tileData.get(tilename + " " + t);
+          if (image == null) image = tileData.get(tilename);
+          tiles.add(TileSet.tile(image, tilesize));
+          tilenames.add(String.format("%s %s", tilename, t));
+        }
+      } else {
+        tiles.add(TileSet.tile(tileData.get(tilename), tilesize));
+        Orientations.expand(
+          tiles,
+          cardinality,
+          tile -> TileSet.rotate(tile, tilesize),
+          tile -> TileSet.reflect(tile, tilesize)
+        );
+        for (int t = 0; t < cardinality; t++) tilenames.add(
+          String.format("%s %s", tilename, t)
+        );
+      }
+
+      Double weight = Double.valueOf(xtile.getOrDefault("weight", "1.0"));
+      for (int t = 0; t < cardinality; t++) tempStationary.add(weight);
+    }
+
+    PropagatorBuilder propagator = new PropagatorBuilder(4, orientations.size());
+
+    for (Map<String, String> xneighbor : neighborData) {
+      String[] left = TileSet.reference(xneighbor.get("left"));
+      String[] right = TileSet.reference(xneighbor.get("right"));
+
+      if (
+        subset != null &&
+        (!subset.contains(left[0]) || !subset.contains(right[0]))
+      ) continue;
+
+      orientations.allow(
+        propagator,
+        orientations.of(left),
+        orientations.of(right)
+      );
+    }
+
+    return new TileSet(
+      tilesize,
+      tiles,
+      tilenames,
+      tempStationary.toArray(new Double[0]),
+      propagator.build()
+    );
+  }
+
+  static String[] reference(String reference) {
+    return Arrays
+      .stream(reference.split(" "))
+      .filter(x -> !x.isEmpty())
+      .toArray(String[]::new);
+  }
+
+  /**
+   * The orientations of the tiles of a set, numbered tile by tile in the
+   * order they were added. Orientation t turned by symmetry s (see
+   * {@link SimpleTiledModel#symmetryActions}) is turn(t, s). Shared by the
+   * planar and the voxel tile models, whose symmetries both act in the
+   * x-y plane.
+   */
+  static final class Orientations {
+    private final List<int[]> action = new ArrayList<int[]>();
+    private final Map<String, Integer> firstOccurrence = new HashMap<String, Integer>();
+
+    /** Add every orientation of a tile, returning how many there are. */
+    int add(String tilename, String symmetry) {
+      int first = this.action.size();
+      this.firstOccurrence.put(tilename, first);
+
+      int[][] map = SimpleTiledModel.symmetryActions(symmetry);
+      int cardinality = map[0].length;
+      for (int t = 0; t < cardinality; t++) {
+        int[] shifted = new int[8];
+        for (int s = 0; s < 8; s++) shifted[s] = map[s][t] + first;
+        this.action.add(shifted);
+      }
+      return cardinality;
+    }
+
+    int size() {
+      return this.action.size();
+    }
+
+    int turn(int t, int s) {
+      return this.action.get(t)[s];
+    }
+
+    /** The orientation a neighbor entry names, "tile" or "tile t". */
+    int of(String[] reference) {
+      Integer first = this.firstOccurrence.get(reference[0]);
+      if (first == null) throw new IllegalArgumentException(
+        "Neighbor refers to unknown tile " + reference[0]
+      );
+      return this.turn(
+          first,
+          reference.length == 1 ? 0 : Integer.valueOf(reference[1])
+        );
+    }
+
+    /**
+     * Allow R to the right of L, and every rotation and reflection of that
+     * pair, in directions 0 and 1 of the propagator.
+     */
+    void allow(PropagatorBuilder propagator, int L, int R) {
+      int D = this.turn(L, 1);
+      int U = this.turn(R, 1);
+
+      propagator.allow(0, R, L);
+      propagator.allow(0, this.turn(R, 6), this.turn(L, 6));
+      propagator.allow(0, this.turn(L, 4), this.turn(R, 4));
+      propagator.allow(0, this.turn(L, 2), this.turn(R, 2));
+
+      propagator.allow(1, U, D);
+      propagator.allow(1, this.turn(D, 6), this.turn(U, 6));
+      propagator.allow(1, this.turn(U, 4), this.turn(D, 4));
+      propagator.allow(1, this.turn(D, 2), this.turn(U, 2));
+    }
+
+    /**
+     * Append orientations 1 to cardinality - 1 of the last tile in tiles,
+     * rotating the previous one for 1-3 and reflecting 0-3 for 4-7.
+     */
+    static <X> void expand(
+      List<X> tiles,
+      int cardinality,
+      UnaryOperator<X> rotate,
+      UnaryOperator<X> reflect
+    ) {
+      int first = tiles.size() - 1;
+      for (int t = 1; t < cardinality; t++) tiles.add(
+        t < 4
+          ? rotate.apply(tiles.get(first + t - 1))
+          : reflect.apply(tiles.get(first + t - 4))
+      );
+    }
+  }
+
+  private static int[] tile(BufferedImage image, int tilesize) {
+    return image.getRGB(0, 0, tilesize, tilesize, null, 0, tilesize);
+  }
+
+  private static int[] rotate(int[] array, int tilesize) {
+    int[] result = new int[tilesize * tilesize];
+    for (int y = 0; y < tilesize; y++) for (int x = 0; x <
+      tilesize; x++) result[x + y * tilesize] =
+      array[tilesize - 1 - y + x * tilesize];
+    return result;
+  }
+
+  private static int[] reflect(int[] array, int tilesize) {
+    int[] result = new int[tilesize * tilesize];
+    for (int y = 0; y < tilesize; y++) for (int x = 0; x <
+      tilesize; x++) result[x + y * tilesize] =
+      array[tilesize - 1 - x + y * tilesize];
+    return result;
+  }
+}
@@ -0,0 +1,258 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+public class VoxelOverlappingModel extends Model {
+  int N;
+  int[][] patterns;
+  int ground;
+  int[] values;
+
+  /**
+   * Creates a new instance of the Overlapping Model for voxel volumes.
+   * Symmetries rotate and mirror patterns around the z (vertical) axis only.
+   * @param data Source volume indexed [x][y][z], any int per voxel (e.g. ARGB or a material id).
+   * @param N Size of the N x N x N patterns.
+   * @param width The width of the generation (in voxels).
+   * @param height The height of the generation (in voxels).
+   * @param depth The depth of the generation (in voxels).
+   * @param periodicInput Whether the source volume is to be considered as periodic (repeatable).
+   * @param periodicOutput Whether the generation should be periodic (repeatable).
+   * @param symmetry Allowed symmetries from 1 (no symmetry) to 8 (all mirrored / rotated variations).
+   * @param ground Id of the specific pattern to use as the bottom layer (z = 0) of the generation.
+   */
+  public VoxelOverlappingModel(
+    int[][][] data,
+    int N,
+    int width,
+    int height,
+    int depth,
+    boolean periodicInput,
+    boolean periodicOutput,
+    int symmetry,
+    int ground
+  ) {
+    super(width, height, depth);
+    this.N = N;
+    this.periodic = periodicOutput;
+
+    int SMX = data.length, SMY = data[0].length, SMZ = data[0][0].length;
+    int[] sample = new int[SMX * SMY * SMZ];
+
+    HashMap<Integer, Integer> palette = new HashMap<Integer, Integer>();
+    List<Integer> values = new ArrayList<Integer>();
+
+    for (int z = 0; z < SMZ; z++) for (int y = 0; y < SMY; y++) for (int x =
+      0; x < SMX; x++) {
+      int value = data[x][y][z];
+      Integer i = palette.get(value);
+      if (i == null) {
+        i = values.size();
+        palette.put(value, i);
+        values.add(value);
+      }
+      sample[x + (y + z * SMY) * SMX] = i;
+    }
+
+    this.values = new int[values.size()];
+    for (int c = 0; c < this.values.length; c++) this.values[c] = values.get(c);
+
+    HashMap<Pattern, Integer> weights = new HashMap<Pattern, Integer>();
+    List<Pattern> ordering = new ArrayList<Pattern>();
+
+    for (int z = 0; z < (periodicInput ? SMZ : SMZ - N + 1); z++) for (int y =
+      0; y < (periodicInput ? SMY : SMY - N + 1); y++) for (int x = 0; x <
+      (periodicInput ? SMX : SMX - N + 1); x++) {
+      int[][] ps = new int[8][];
+
+      ps[0] = new int[N * N * N];
+      for (int dz = 0; dz < N; dz++) for (int dy = 0; dy < N; dy++) for (int dx =
+        0; dx < N; dx++) ps[0][dx + (dy + dz * N) * N] =
+        sample[(x + dx) % SMX + ((y + dy) % SMY + ((z + dz) % SMZ) * SMY) * SMX];
+
+      ps[1] = this.reflect(ps[0]);
+      ps[2] = this.rotate(ps[0]);
+      ps[3] = this.reflect(ps[2]);
+      ps[4] = this.rotate(ps[2]);
+      ps[5] = this.reflect(ps[4]);
+      ps[6] = this.rotate(ps[4]);
+      ps[7] = this.reflect(ps[6]);
+
+      for (int k = 0; k < symmetry; k++) {
+        Pattern p = new Pattern(ps[k]);
+        Integer weight = weights.get(p);
+        if (weight != null) weights.put(p, weight + 1); else {
+          weights.put(p, 1);
+          ordering.add(p);
+        }
+      }
+    }
+
+    this.T = weights.size();
+    this.ground = (ground + this.T) % this.T;
+    this.patterns = new int[this.T][];
+    this.weights = new Double[this.T];
+
+    for (int t = 0; t < this.T; t++) {
+      Pattern p = ordering.get(t);
+      this.patterns[t] = p.cells;
+      this.weights[t] = (double) weights.get(p);
+    }
+
+    this.propagator = new int[6][][];
+
+    for (int d = 0; d < 6; d++) {
+      this.propagator[d] = new int[this.T][];
+      for (int t = 0; t < this.T; t++) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int t2 = 0; t2 < this.T; t2++) if (
+          this.agrees(
+              this.patterns[t],
+              this.patterns[t2],
+              Model.DX[d],
+              Model.DY[d],
+              Model.DZ[d]
+            )
+        ) list.add(t2);
+        this.propagator[d][t] = new int[list.size()];
+        for (int c = 0; c < list.size(); c++) this.propagator[d][t][c] =
+          list.get(c);
+      }
+    }
+  }
+
+  private int[] rotate(int[] p) {
+    int[] result = new int[p.length];
+    for (int z = 0; z < this.N; z++) for (int y = 0; y < this.N; y++) for (int x =
+      0; x < this.N; x++) result[x + (y + z * this.N) * this.N] =
+      p[this.N - 1 - y + (x + z * this.N) * this.N];
+    return result;
+  }
+
+  private int[] reflect(int[] p) {
+    int[] result = new int[p.length];
+    for (int z = 0; z < this.N; z++) for (int y = 0; y < this.N; y++) for (int x =
+      0; x < this.N; x++) result[x + (y + z * this.N) * this.N] =
+      p[this.N - 1 - x + (y + z * this.N) * this.N];
+    return result;
+  }
+
+  private boolean agrees(int[] p1, int[] p2, int dx, int dy, int dz) {
+    int xmin = dx < 0 ? 0 : dx, xmax = dx < 0 ? dx + this.N : this.N;
+    int ymin = dy < 0 ? 0 : dy, ymax = dy < 0 ? dy + this.N : this.N;
+    int zmin = dz < 0 ? 0 : dz, zmax = dz < 0 ? dz + this.N : this.N;
+
+    for (int z = zmin; z < zmax; z++) for (int y = ymin; y < ymax; y++) for (int x =
+      xmin; x < xmax; x++) if (
+      p1[x + (y + z * this.N) * this.N] !=
+      p2[x - dx + (y - dy + (z - dz) * this.N) * this.N]
+    ) return false;
+    return true;
+  }
+
+  @Override
+  protected boolean onBoundary(int x, int y) {
+    return this.onBoundary(x, y, 0);
+  }
+
+  @Override
+  protected boolean onBoundary(int x, int y, int z) {
+    return (
+      !this.periodic &&
+      (
+        x + this.N > this.FMX ||
+        y + this.N > this.FMY ||
+        z + this.N > this.FMZ ||
+        x < 0 ||
+        y < 0 ||
+        z < 0
+      )
+    );
+  }
+
+  /**
+   * Returns the generated volume indexed [x][y][z], or null if Run() has not
+   * completed successfully.
+   */
+  public int[][][] voxels() {
+    if (this.observed == null) return null;
+
+    int[][][] result = new int[this.FMX][this.FMY][this.FMZ];
+
+    for (int z = 0; z < this.FMZ; z++) {
+      int dz = z < this.FMZ - this.N + 1 ? 0 : this.N - 1;
+      for (int y = 0; y < this.FMY; y++) {
+        int dy = y < this.FMY - this.N + 1 ? 0 : this.N - 1;
+        for (int x = 0; x < this.FMX; x++) {
+          int dx = x < this.FMX - this.N + 1 ? 0 : this.N - 1;
+          int[] p = this.patterns[this.observed[x -
+              dx +
+              (y - dy + (z - dz) * this.FMY) * this.FMX]];
+          result[x][y][z] = this.values[p[dx + (dy + dz * this.N) * this.N]];
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the z slices of the generation side by side, reading voxel
+   * values as RGB colors. Requires Run() to have been run.
+   */
+  @Override
+  public BufferedImage graphics() {
+    BufferedImage result = new BufferedImage(
+      this.FMX * this.FMZ,
+      this.FMY,
+      BufferedImage.TYPE_INT_RGB
+    );
+
+    int[][][] voxels = this.voxels();
+    if (voxels == null) return result;
+
+    for (int z = 0; z < this.FMZ; z++) for (int y = 0; y < this.FMY; y++) for (int x =
+      0; x < this.FMX; x++) result.setRGB(z * this.FMX + x, y, voxels[x][y][z]);
+
+    return result;
+  }
+
+  @Override
+  protected void constrain() {
+    if (this.ground != 0) {
+      for (int y = 0; y < this.FMY; y++) for (int x = 0; x < this.FMX; x++) {
+        this.collapse(x + y * this.FMX, this.ground);
+
+        for (int z = 1; z < this.FMZ; z++) this.ban(
+            x + (y + z * this.FMY) * this.FMX,
+            this.ground
+          );
+      }
+
+      this.propagate();
+    }
+  }
+
+  private static final class Pattern {
+    final int[] cells;
+    final int hash;
+
+    Pattern(int[] cells) {
+      this.cells = cells;
+      this.hash = Arrays.hashCode(cells);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Pattern && Arrays.equals(this.cells, ((Pattern) o).cells);
+    }
+  }
+}
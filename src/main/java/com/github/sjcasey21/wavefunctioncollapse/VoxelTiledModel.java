@@ -0,0 +1,214 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+public class VoxelTiledModel extends Model {
+  List<int[]> tiles;
+  List<String> tilenames;
+  int tilesize;
+
+  /**
+   * Create a new instance of a Simple Tiled Model for voxel tiles. Tile
+   * symmetries rotate and mirror around the z (vertical) axis.
+   * @param tilesize Edge length of the cubic tiles in voxels.
+   * @param tileSymmetries Array of Map of tilenames and their symmetries.
+   * @param neighborData Array of Map of either left and right, or bottom and top neighbor combinations.
+   * @param subsetData Map of Subset definitions.
+   * @param tileData Map of tile voxel data (index x + y * tilesize + z * tilesize * tilesize) indexed by tilename.
+   * @param subsetName Name of the subset in subsetData to use.
+   * @param width Output width in tiles.
+   * @param height Output height in tiles.
+   * @param depth Output depth in tiles.
+   * @param periodic Should the output generation be tileable.
+   */
+  public VoxelTiledModel(
+    int tilesize,
+    List<Map<String, String>> tileSymmetries,
+    List<Map<String, String>> neighborData,
+    Map<String, String[]> subsetData,
+    Map<String, int[]> tileData,
+    String subsetName,
+    int width,
+    int height,
+    int depth,
+    boolean periodic
+  ) {
+    super(width, height, depth);
+    this.periodic = periodic;
+    this.tilesize = tilesize;
+
+    Set<String> subset = null;
+    if (
+      subsetName != null &&
+      subsetData != null &&
+      subsetData.containsKey(subsetName)
+    ) {
+      subset = new HashSet<String>(Arrays.asList(subsetData.get(subsetName)));
+    }
+
+    this.tiles = new ArrayList<int[]>();
+    this.tilenames = new ArrayList<String>();
+
+    List<Double> tempStationary = new ArrayList<Double>();
+    TileSet.Orientations orientations = new TileSet.Orientations();
+
+    for (Map<String, String> xtile : tileSymmetries) {
+      String tilename = xtile.get("name");
+      if (subset != null && !subset.contains(tilename)) continue;
+
+      int cardinality = orientations.add(
+        tilename,
+        xtile.getOrDefault("symmetry", "X")
+      );
+
+      this.tiles.add(tileData.get(tilename));
+      TileSet.Orientations.expand(this.tiles, cardinality, this::rotate, this::reflect);
+      for (int t = 0; t < cardinality; t++) this.tilenames.add(
+        String.format("%s %s", tilename, t)
+      );
+
+      for (int t = 0; t < cardinality; t++) tempStationary.add(
+        Double.valueOf(xtile.getOrDefault("weight", "1.0"))
+      );
+    }
+
+    this.T = orientations.size();
+    this.weights = tempStationary.toArray(new Double[0]);
+
+    PropagatorBuilder propagator = new PropagatorBuilder(6, this.T);
+
+    for (Map<String, String> xneighbor : neighborData) {
+      boolean vertical = xneighbor.containsKey("bottom");
+      String[] first = TileSet.reference(
+        xneighbor.get(vertical ? "bottom" : "left")
+      );
+      String[] second = TileSet.reference(
+        xneighbor.get(vertical ? "top" : "right")
+      );
+
+      if (
+        subset != null &&
+        (!subset.contains(first[0]) || !subset.contains(second[0]))
+      ) continue;
+
+      int A = orientations.of(first);
+      int B = orientations.of(second);
+
+      if (vertical) {
+        for (int s = 0; s < 8; s++) propagator.allow(
+          4,
+          orientations.turn(A, s),
+          orientations.turn(B, s)
+        );
+      } else orientations.allow(propagator, A, B);
+    }
+
+    this.propagator = propagator.build();
+  }
+
+  private int[] rotate(int[] array) {
+    int s = this.tilesize;
+    int[] result = new int[array.length];
+    for (int z = 0; z < s; z++) for (int y = 0; y < s; y++) for (int x = 0; x <
+      s; x++) result[x + (y + z * s) * s] = array[s - 1 - y + (x + z * s) * s];
+    return result;
+  }
+
+  private int[] reflect(int[] array) {
+    int s = this.tilesize;
+    int[] result = new int[array.length];
+    for (int z = 0; z < s; z++) for (int y = 0; y < s; y++) for (int x = 0; x <
+      s; x++) result[x + (y + z * s) * s] = array[s - 1 - x + (y + z * s) * s];
+    return result;
+  }
+
+  @Override
+  protected boolean onBoundary(int x, int y) {
+    return this.onBoundary(x, y, 0);
+  }
+
+  @Override
+  protected boolean onBoundary(int x, int y, int z) {
+    return (
+      !this.periodic &&
+      (
+        x < 0 ||
+        y < 0 ||
+        z < 0 ||
+        x >= this.FMX ||
+        y >= this.FMY ||
+        z >= this.FMZ
+      )
+    );
+  }
+
+  public String textOutput() {
+    StringBuilder result = new StringBuilder();
+
+    for (int z = 0; z < this.FMZ; z++) {
+      for (int y = 0; y < this.FMY; y++) {
+        for (int x = 0; x < this.FMX; x++) result.append(
+          String.format(
+            "{%s}, ",
+            this.tilenames.get(this.observed[x + (y + z * this.FMY) * this.FMX])
+          )
+        );
+        result.append("\n");
+      }
+      result.append("\n");
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Returns the generated volume indexed [x][y][z], or null if Run() has not
+   * completed successfully.
+   */
+  public int[][][] voxels() {
+    if (this.observed == null) return null;
+
+    int s = this.tilesize;
+    int[][][] result = new int[this.FMX * s][this.FMY * s][this.FMZ * s];
+
+    for (int z = 0; z < this.FMZ; z++) for (int y = 0; y < this.FMY; y++) for (int x =
+      0; x < this.FMX; x++) {
+      int[] tile = this.tiles.get(this.observed[x + (y + z * this.FMY) * this.FMX]);
+      for (int zt = 0; zt < s; zt++) for (int yt = 0; yt < s; yt++) for (int xt =
+        0; xt < s; xt++) result[x * s + xt][y * s + yt][z * s + zt] =
+        tile[xt + (yt + zt * s) * s];
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the z slices of the generation side by side, reading voxel
+   * values as RGB colors. Requires Run() to have been run.
+   */
+  @Override
+  public BufferedImage graphics() {
+    int s = this.tilesize;
+    BufferedImage result = new BufferedImage(
+      this.FMX * s * this.FMZ * s,
+      this.FMY * s,
+      BufferedImage.TYPE_INT_RGB
+    );
+
+    int[][][] voxels = this.voxels();
+    if (voxels == null) return result;
+
+    int X = this.FMX * s;
+    for (int z = 0; z < this.FMZ * s; z++) for (int y = 0; y <
+      this.FMY * s; y++) for (int x = 0; x < X; x++) result.setRGB(
+      z * X + x,
+      y,
+      voxels[x][y][z]
+    );
+
+    return result;
+  }
+}
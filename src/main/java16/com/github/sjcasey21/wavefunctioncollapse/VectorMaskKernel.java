@@ -0,0 +1,48 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link MaskKernel} on the preferred {@code long} vector shape of the CPU.
+ * Only compiled on JDK 16+ and loaded reflectively by MaskKernel.
+ */
+final class VectorMaskKernel extends MaskKernel {
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  @Override
+  void or(long[] dst, int dstOffset, long[] src, int srcOffset, int n) {
+    int w = 0;
+    for (int bound = SPECIES.loopBound(n); w < bound; w += SPECIES.length()) {
+      LongVector
+        .fromArray(SPECIES, dst, dstOffset + w)
+        .or(LongVector.fromArray(SPECIES, src, srcOffset + w))
+        .intoArray(dst, dstOffset + w);
+    }
+    for (; w < n; w++) dst[dstOffset + w] |= src[srcOffset + w];
+  }
+
+  @Override
+  boolean intersects(long[] a, int aOffset, long[] b, int bOffset, int n) {
+    int w = 0;
+    for (int bound = SPECIES.loopBound(n); w < bound; w += SPECIES.length()) {
+      if (
+        LongVector
+          .fromArray(SPECIES, a, aOffset + w)
+          .and(LongVector.fromArray(SPECIES, b, bOffset + w))
+          .compare(VectorOperators.NE, 0)
+          .anyTrue()
+      ) return true;
+    }
+    for (; w < n; w++) if ((a[aOffset + w] & b[bOffset + w]) != 0) return true;
+    return false;
+  }
+
+  @Override
+  int lanes() {
+    return SPECIES.length();
+  }
+}
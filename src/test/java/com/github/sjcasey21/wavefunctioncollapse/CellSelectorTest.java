@@ -0,0 +1,98 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class CellSelectorTest {
+  /** A 1D wave with given counts, every cell observable. */
+  private static final class Counts implements CellSelector.Wave {
+    final int[] remaining;
+    final Random random = new Random(1);
+
+    Counts(int... remaining) {
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int width() {
+      return this.remaining.length;
+    }
+
+    @Override
+    public int height() {
+      return 1;
+    }
+
+    @Override
+    public int depth() {
+      return 1;
+    }
+
+    @Override
+    public boolean observable(int i) {
+      return true;
+    }
+
+    @Override
+    public int remaining(int i) {
+      return this.remaining[i];
+    }
+
+    @Override
+    public double entropy(int i) {
+      return Math.log(this.remaining[i]);
+    }
+
+    @Override
+    public Random random() {
+      return this.random;
+    }
+  }
+
+  @Test
+  public void minimumRemainingFollowsTheCounts() {
+    Counts wave = new Counts(5, 3, 1, 4, 3);
+    CellSelector selector = CellSelector.minimumRemaining();
+    selector.reset(wave);
+    int first = selector.next();
+    assertTrue(first == 1 || first == 4);
+
+    wave.remaining[3] = 2;
+    selector.changed(3);
+    assertEquals(3, selector.next());
+
+    wave.remaining[3] = 1;
+    selector.changed(3);
+    wave.remaining[1] = 1;
+    selector.changed(1);
+    assertEquals(4, selector.next());
+
+    wave.remaining[4] = 1;
+    selector.changed(4);
+    assertEquals(0, selector.next());
+
+    wave.remaining[0] = 1;
+    selector.changed(0);
+    assertEquals(-1, selector.next());
+  }
+
+  @Test
+  public void minimumRemainingDrawsTiesAtRandom() {
+    Counts wave = new Counts(4, 2, 2, 2, 2, 3);
+    CellSelector selector = CellSelector.minimumRemaining();
+    Set<Integer> picked = new HashSet<>();
+    for (int k = 0; k < 50; k++) {
+      selector.reset(wave);
+      int i = selector.next();
+      assertEquals(2, wave.remaining[i]);
+      picked.add(i);
+    }
+    assertEquals(4, picked.size());
+  }
+}
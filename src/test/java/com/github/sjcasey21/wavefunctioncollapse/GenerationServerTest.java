@@ -0,0 +1,128 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GenerationServerTest {
+  private GenerationServer server;
+  private int port;
+
+  @Before
+  public void start() throws IOException {
+    this.server =
+      new GenerationServer(
+        Paths.get("."),
+        2,
+        8,
+        64 * 64,
+        8,
+        1 << 20,
+        1L << 24,
+        30,
+        TimeUnit.SECONDS
+      );
+    this.port = this.server.start(new InetSocketAddress("localhost", 0)).getPort();
+  }
+
+  @After
+  public void stop() {
+    this.server.stop();
+  }
+
+  private static final class Reply {
+    final int code;
+    final String cache;
+    final byte[] body;
+
+    Reply(int code, String cache, byte[] body) {
+      this.code = code;
+      this.cache = cache;
+      this.body = body;
+    }
+  }
+
+  private Reply get(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+      "http://localhost:" + this.port + path
+    )
+      .openConnection();
+    try {
+      int code = connection.getResponseCode();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (
+        InputStream in = code < 400
+          ? connection.getInputStream()
+          : connection.getErrorStream()
+      ) {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0;) body.write(buffer, 0, n);
+      }
+      return new Reply(code, connection.getHeaderField("X-Cache"), body.toByteArray());
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private long stat(String name) {
+    for (String line : this.server.stats().split("\\R")) {
+      if (line.startsWith(name + " ")) return Long.parseLong(line.substring(name.length() + 1));
+    }
+    throw new AssertionError("No " + name + " in stats");
+  }
+
+  @Test
+  public void identicalRequestsAreSolvedOnce() throws Exception {
+    String path = "/tiled?sample=knot&width=32&height=32&periodic=true&seed=3";
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    try {
+      CountDownLatch ready = new CountDownLatch(2);
+      List<Future<Reply>> replies = new ArrayList<>();
+      for (int k = 0; k < 2; k++) replies.add(
+        clients.submit(
+          () -> {
+            ready.countDown();
+            ready.await();
+            return this.get(path);
+          }
+        )
+      );
+      Reply first = replies.get(0).get(), second = replies.get(1).get();
+
+      assertEquals(first.code, second.code);
+      assertArrayEquals(first.body, second.body);
+      assertEquals(1, this.stat("misses"));
+      assertEquals(1, this.stat("hits") + this.stat("shared"));
+      List<String> caches = Arrays.asList(first.cache, second.cache);
+      assertTrue(caches.contains("miss"));
+    } finally {
+      clients.shutdownNow();
+    }
+
+    // Contradictions are cached too, only timeouts are not.
+    Reply again = this.get(path);
+    assertEquals("hit", again.cache);
+    assertEquals(1, this.stat("misses"));
+  }
+
+  @Test
+  public void outputsAboveTheCellLimitAreBadRequests() throws IOException {
+    assertEquals(400, this.get("/tiled?sample=knot&width=65&height=64").code);
+    assertEquals(400, this.get("/text?sample=input.txt&width=2147483647&height=2147483647").code);
+    assertEquals(400, this.get("/overlapping?sample=Flowers2.png&width=0").code);
+    assertEquals(0, this.stat("misses"));
+  }
+}
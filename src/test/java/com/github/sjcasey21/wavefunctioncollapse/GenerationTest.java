@@ -0,0 +1,100 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+
+public class GenerationTest {
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @After
+  public void shutdown() {
+    this.release.countDown();
+    this.executor.shutdownNow();
+  }
+
+  private void block() {
+    this.executor.execute(
+        () -> {
+          try {
+            this.release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      );
+  }
+
+  @Test
+  public void aQueuedTaskTimesOutAtItsDeadline() throws Exception {
+    this.block();
+    AtomicBoolean ran = new AtomicBoolean();
+    String untouched = "untouched";
+
+    long start = System.nanoTime();
+    CompletableFuture<Generation<String>> future = Generation.start(
+      50,
+      TimeUnit.MILLISECONDS,
+      this.executor,
+      untouched,
+      stop -> {
+        ran.set(true);
+        return new Generation<>(Generation.Status.DONE, "ran");
+      }
+    );
+
+    Generation<String> generation = future.get(5, TimeUnit.SECONDS);
+    assertEquals(Generation.Status.TIMEOUT, generation.status);
+    assertSame(untouched, generation.state);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+    // The late start is a no-op.
+    this.release.countDown();
+    this.executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+    assertFalse(ran.get());
+  }
+
+  @Test
+  public void aRunningTaskStopsAtItsNextCheck() throws Exception {
+    CompletableFuture<Generation<String>> future = Generation.start(
+      50,
+      TimeUnit.MILLISECONDS,
+      this.executor,
+      "untouched",
+      stop -> {
+        while (!stop.getAsBoolean()) Thread.yield();
+        return new Generation<>(Generation.Status.TIMEOUT, "stopped");
+      }
+    );
+
+    Generation<String> generation = future.get(5, TimeUnit.SECONDS);
+    assertEquals(Generation.Status.TIMEOUT, generation.status);
+    assertEquals("stopped", generation.state);
+  }
+
+  @Test
+  public void aModelStillQueuedIsLeftUntouched() throws Exception {
+    this.block();
+    SimpleTiledModel model = new SimpleTiledModel(
+      TileSet.load(Paths.get("knot/data.xml"), null, false),
+      8,
+      8,
+      true,
+      false
+    );
+
+    Generation<Model> generation = model
+      .generate(1, 20, TimeUnit.MILLISECONDS, this.executor)
+      .get(5, TimeUnit.SECONDS);
+    assertEquals(Generation.Status.TIMEOUT, generation.status);
+    assertSame(model, generation.state);
+    assertNull(model.wave);
+  }
+}
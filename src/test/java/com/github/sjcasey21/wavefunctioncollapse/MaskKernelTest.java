@@ -0,0 +1,78 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+// The vector kernel is only there when the build ran the vector profile,
+// which compiles src/main/java16 and adds jdk.incubator.vector to the test
+// JVM. Elsewhere these tests are skipped.
+public class MaskKernelTest {
+  @Test
+  public void theVectorKernelAgreesWithTheScalarOne() {
+    MaskKernel vector = MaskKernel.vector(64);
+    assumeNotNull(vector);
+
+    Random random = new Random(1);
+    for (int k = 0; k < 200; k++) {
+      int n = random.nextInt(40), offset = random.nextInt(5);
+      long[] a = new long[n + 8], b = new long[n + 8];
+      // Sparse words, so that some runs share no bit at all.
+      for (int w = 0; w < a.length; w++) {
+        a[w] = random.nextLong() & random.nextLong() & random.nextLong();
+        b[w] = random.nextInt(4) == 0 ? random.nextLong() : 0;
+      }
+
+      assertEquals(
+        MaskKernel.SCALAR.intersects(a, offset, b, 3, n),
+        vector.intersects(a, offset, b, 3, n)
+      );
+
+      long[] scalar = a.clone(), vectored = a.clone();
+      MaskKernel.SCALAR.or(scalar, offset, b, 3, n);
+      vector.or(vectored, offset, b, 3, n);
+      assertArrayEquals(scalar, vectored);
+    }
+  }
+
+  // lair3.png with N = 4 has 770 patterns, 13 words per cell, enough for
+  // one vector of up to 8 longs.
+  private static OverlappingModel model(PatternSet patterns, boolean vectorize) {
+    OverlappingModel model = new OverlappingModel(patterns, 16, 16, true, 0, false);
+    model.counterLimit = 0;
+    model.vectorize = vectorize;
+    return model;
+  }
+
+  @Test
+  public void vectorAndScalarMasksGiveTheSameWaves() throws IOException {
+    BufferedImage sample = ImageIO.read(new File("lair3.png"));
+    PatternSet patterns = PatternSet.compile(sample, 4, true, 8);
+    OverlappingModel vector = model(patterns, true);
+    OverlappingModel scalar = model(patterns, false);
+
+    for (int seed = 1; seed <= 2; seed++) {
+      vector.run(seed, 20);
+      scalar.run(seed, 20);
+      assumeTrue(vector.kernel != MaskKernel.SCALAR);
+      assertSame(MaskKernel.SCALAR, scalar.kernel);
+      assertNull(vector.compatible);
+      assertArrayEquals(
+        scalar.wave.toArray(scalar.wave.length()),
+        vector.wave.toArray(vector.wave.length())
+      );
+
+      boolean ok = scalar.resume(0);
+      assertEquals(ok, vector.resume(0));
+      assertArrayEquals(scalar.observed, vector.observed);
+    }
+  }
+}
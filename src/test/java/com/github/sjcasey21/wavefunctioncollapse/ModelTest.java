@@ -0,0 +1,56 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ModelTest {
+  private static PatternSet patterns;
+
+  @BeforeClass
+  public static void compile() throws IOException {
+    BufferedImage sample = ImageIO.read(new File("lair3.png"));
+    patterns = PatternSet.compile(sample, 3, true, 8);
+  }
+
+  @Test
+  public void collapsingToABannedPatternIsAContradiction() {
+    OverlappingModel model = new OverlappingModel(patterns, 16, 16, true, 0);
+    model.run(1, 1);
+    assertFalse(model.contradiction);
+
+    int i = 0;
+    while (model.remaining(i) < 2) i++;
+    int t = 0;
+    while (!model.possible(i, t)) t++;
+
+    model.ban(i, t);
+    model.collapse(i, t);
+    assertEquals(0, model.remaining(i));
+    for (int u = 0; u < model.T; u++) assertFalse(model.possible(i, u));
+    assertTrue(model.contradiction);
+  }
+
+  @Test
+  public void collapseKeepsOnlyThePattern() {
+    OverlappingModel model = new OverlappingModel(patterns, 16, 16, true, 0);
+    model.run(1, 1);
+
+    int i = 0;
+    while (model.remaining(i) < 2) i++;
+    int t = model.T - 1;
+    while (!model.possible(i, t)) t--;
+
+    model.collapse(i, t);
+    assertEquals(1, model.remaining(i));
+    for (int u = 0; u < model.T; u++) assertEquals(u == t, model.possible(i, u));
+    assertFalse(model.contradiction);
+  }
+}
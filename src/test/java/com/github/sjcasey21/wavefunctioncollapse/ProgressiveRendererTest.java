@@ -0,0 +1,72 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+public class ProgressiveRendererTest {
+  private static int[] rgb(BufferedImage image) {
+    int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    for (int p = 0; p < pixels.length; p++) pixels[p] &= 0xffffff;
+    return pixels;
+  }
+
+  // Steps every seed on the same renderer, so the full redraw after a new
+  // run is covered too, and compares the image with graphics() after each
+  // update. Returns the number of generations that finished.
+  private static int assertMatchesGraphics(
+    Model model,
+    ProgressiveRenderer renderer,
+    int step
+  ) {
+    int finished = 0;
+    for (int seed = 1; seed <= 3; seed++) {
+      boolean ok = model.run(seed, step);
+      for (int frame = 0; ok; frame++) {
+        renderer.update();
+        assertArrayEquals(
+          "seed " + seed + " frame " + frame,
+          rgb(model.graphics()),
+          rgb(renderer.image())
+        );
+        if (model.finished()) {
+          finished++;
+          break;
+        }
+        ok = model.resume(step);
+      }
+    }
+    return finished;
+  }
+
+  @Test
+  public void overlappingImagesMatchGraphics() throws IOException {
+    BufferedImage lair = ImageIO.read(new File("lair3.png"));
+    for (boolean periodic : new boolean[] { true, false }) {
+      OverlappingModel model = new OverlappingModel(lair, 3, 24, 24, true, periodic, 8, 0);
+      assertTrue(assertMatchesGraphics(model, model.renderer(), 8) > 0);
+    }
+
+    // Patterns merged by the reduction.
+    BufferedImage flowers = ImageIO.read(new File("Flowers2.png"));
+    OverlappingModel model = new OverlappingModel(flowers, 3, 32, 32, false, true, 8, 0);
+    assertNotNull(model.reduction);
+    assertTrue(assertMatchesGraphics(model, model.renderer(), 8) > 0);
+  }
+
+  @Test
+  public void tiledImagesMatchGraphics() throws IOException {
+    TileSet tileset = TileSet.load(Paths.get("knot/data.xml"), null, false);
+    for (boolean black : new boolean[] { false, true }) {
+      SimpleTiledModel model = new SimpleTiledModel(tileset, 12, 12, true, black);
+      assertTrue(assertMatchesGraphics(model, model.renderer(), 4) > 0);
+    }
+  }
+}
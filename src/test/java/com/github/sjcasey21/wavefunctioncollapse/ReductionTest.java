@@ -0,0 +1,171 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+public class ReductionTest {
+  private static final int[] EXTENT = { 8, 8, 8, 8 };
+
+  // Four directions, every pattern allowed next to every pattern.
+  private static int[][][] everything(int T) {
+    int[] all = new int[T];
+    for (int t = 0; t < T; t++) all[t] = t;
+    int[][][] rows = new int[4][T][];
+    for (int[][] row : rows) Arrays.fill(row, all);
+    return rows;
+  }
+
+  @Test
+  public void patternsThatPropagateAlikeAreMerged() {
+    Reduction reduction = Reduction.of(
+      new double[] { 1, 2, 3 },
+      everything(3),
+      true,
+      EXTENT,
+      -1
+    );
+    assertEquals(1, reduction.T);
+    assertArrayEquals(new int[] { 0, 1, 2 }, reduction.members[0]);
+    assertEquals(6, reduction.weights[0], 0);
+  }
+
+  @Test
+  public void theKeptPatternIsNeverMerged() {
+    Reduction reduction = Reduction.of(
+      new double[] { 1, 2, 3 },
+      everything(3),
+      true,
+      EXTENT,
+      1
+    );
+    assertEquals(2, reduction.T);
+    assertArrayEquals(new int[] { 0, 2 }, reduction.members[0]);
+    assertArrayEquals(new int[] { 1 }, reduction.members[1]);
+    assertEquals(1, reduction.classOf[1]);
+  }
+
+  // Rows allowing u next to t in direction d, and t next to u opposite.
+  private static int[][][] rows(int T, int[][] allowed) {
+    List<TreeSet<Integer>> sets = new ArrayList<>();
+    for (int k = 0; k < 4 * T; k++) sets.add(new TreeSet<Integer>());
+    for (int[] a : allowed) {
+      int d = a[0], t = a[1], u = a[2];
+      sets.get(d * T + t).add(u);
+      sets.get(Model.opposite[d] * T + u).add(t);
+    }
+
+    int[][][] rows = new int[4][T][];
+    for (int d = 0; d < 4; d++) for (int t = 0; t < T; t++) rows[d][t] =
+      sets.get(d * T + t).stream().mapToInt(Integer::intValue).toArray();
+    return rows;
+  }
+
+  @Test
+  public void unplaceablePatternsAreDropped() {
+    // 2 has no neighbour in direction 1, and 1 needs 2 in direction 0.
+    int[][][] rows = rows(
+      3,
+      new int[][] {
+        { 0, 0, 0 },
+        { 1, 0, 0 },
+        { 0, 1, 2 },
+        { 1, 1, 0 },
+        { 2, 1, 0 },
+        { 3, 1, 0 },
+        { 0, 2, 0 },
+        { 3, 2, 0 },
+      }
+    );
+
+    Reduction reduction = Reduction.of(new double[] { 1, 1, 1 }, rows, true, EXTENT, -1);
+    assertEquals(1, reduction.T);
+    assertArrayEquals(new int[] { 0, -1, -1 }, reduction.classOf);
+
+    // A kept pattern stays even if it can not be placed, and so does 1.
+    assertNull(Reduction.of(new double[] { 1, 1, 1 }, rows, true, EXTENT, 2));
+  }
+
+  @Test
+  public void anEmptyRowLeavesOnlyTheEdge() {
+    // 1 has no neighbour in direction 1, so it can only sit along that edge.
+    int[][][] rows = rows(
+      2,
+      new int[][] {
+        { 0, 0, 0 },
+        { 1, 0, 0 },
+        { 2, 0, 0 },
+        { 3, 0, 0 },
+        { 3, 1, 0 },
+        { 0, 1, 1 },
+      }
+    );
+
+    assertNull(Reduction.of(new double[] { 1, 1 }, rows, false, EXTENT, -1));
+
+    Reduction periodic = Reduction.of(new double[] { 1, 1 }, rows, true, EXTENT, -1);
+    assertArrayEquals(new int[] { 0, -1 }, periodic.classOf);
+  }
+
+  private static int[] pixels(Model model) {
+    BufferedImage image = model.graphics();
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+
+  @Test
+  public void samplesThatDoNotReduceGenerateTheSameImages() throws IOException {
+    BufferedImage knot = ImageIO.read(new File("Knot.png"));
+    PatternSet patterns = PatternSet.compile(knot, 3, true, 8);
+    Model plain = new OverlappingModel(patterns, 24, 24, true, 0, false);
+    Model reduced = new OverlappingModel(patterns, 24, 24, true, 0);
+    assertNull(reduced.reduction);
+    assertEquals(plain.T, reduced.T);
+
+    for (int seed = 1; seed <= 3; seed++) {
+      boolean ok = plain.run(seed, 0);
+      assertEquals(ok, reduced.run(seed, 0));
+      if (ok) assertArrayEquals(pixels(plain), pixels(reduced));
+    }
+  }
+
+  @Test
+  public void reducedOutputsFollowTheOriginalRules() throws IOException {
+    BufferedImage flowers = ImageIO.read(new File("Flowers2.png"));
+    PatternSet patterns = PatternSet.compile(flowers, 3, false, 8);
+    Model model = new OverlappingModel(patterns, 32, 32, true, 0);
+    assertTrue(model.T < patterns.T);
+
+    for (int seed = 1; seed <= 3; seed++) {
+      assertTrue(model.run(seed, 0));
+
+      for (int i = 0; i < model.observed.length; i++) {
+        int t = model.observed[i];
+        for (int d = 0; d < 4; d++) {
+          int u = model.observed[model.neighbor(i, d)];
+          assertTrue(
+            "pattern " + u + " next to " + t,
+            Arrays.stream(patterns.propagator[d][t]).anyMatch(v -> v == u)
+          );
+        }
+      }
+    }
+  }
+
+  @Test
+  public void theGroundGetsAClassOfItsOwn() throws IOException {
+    BufferedImage flowers = ImageIO.read(new File("Flowers2.png"));
+    PatternSet patterns = PatternSet.compile(flowers, 3, false, 8);
+    OverlappingModel model = new OverlappingModel(patterns, 32, 32, true, -1);
+
+    assertNotNull(model.reduction);
+    assertArrayEquals(new int[] { patterns.T - 1 }, model.members(model.ground));
+  }
+}
@@ -0,0 +1,81 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.imageio.ImageIO;
+
+/**
+ * Success rate and time per generation of every built-in cell selector on
+ * the bundled samples. Not a unit test; run from the project directory with
+ * {@code java -cp target/classes:target/test-classes
+ * com.github.sjcasey21.wavefunctioncollapse.SelectorBenchmark [seeds]}.
+ */
+public final class SelectorBenchmark {
+  private static final Map<String, Supplier<CellSelector>> SELECTORS =
+    new LinkedHashMap<>();
+
+  static {
+    SELECTORS.put("entropyScan", CellSelector::entropyScan);
+    SELECTORS.put("entropy", CellSelector::entropy);
+    SELECTORS.put("minimumRemaining", CellSelector::minimumRemaining);
+    SELECTORS.put("scanline", CellSelector::scanline);
+    SELECTORS.put("spiral", CellSelector::spiral);
+  }
+
+  public static void main(String[] args) throws IOException {
+    int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+    BufferedImage flowers = ImageIO.read(new File("Flowers2.png"));
+    PatternSet flowerPatterns = PatternSet.compile(flowers, 3, true, 2);
+    BufferedImage lair = ImageIO.read(new File("lair3.png"));
+    PatternSet lairPatterns = PatternSet.compile(lair, 3, true, 8);
+    BufferedImage knotImage = ImageIO.read(new File("Knot.png"));
+    PatternSet knotPatterns = PatternSet.compile(knotImage, 3, true, 8);
+    TileSet knot = TileSet.load(Paths.get("knot/data.xml"), null, false);
+
+    Map<String, Supplier<Model>> samples = new LinkedHashMap<>();
+    samples.put(
+      "Flowers2 48x48",
+      () -> new OverlappingModel(flowerPatterns, 48, 48, false, -1)
+    );
+    samples.put(
+      "lair3 48x48 periodic",
+      () -> new OverlappingModel(lairPatterns, 48, 48, true, 0)
+    );
+    samples.put(
+      "Knot 48x48 periodic",
+      () -> new OverlappingModel(knotPatterns, 48, 48, true, 0)
+    );
+    samples.put("knot tiles 24x24", () -> new SimpleTiledModel(knot, 24, 24, false, false));
+
+    System.out.printf("%-22s %-17s %9s %12s%n", "sample", "selector", "solved", "ms/run");
+    for (Map.Entry<String, Supplier<Model>> sample : samples.entrySet()) {
+      for (Map.Entry<String, Supplier<CellSelector>> selector : SELECTORS.entrySet()) {
+        Model model = sample.getValue().get();
+        model.setSelector(selector.getValue().get());
+        model.run(0, 0); // warm up
+
+        int solved = 0;
+        long start = System.nanoTime();
+        for (int seed = 1; seed <= seeds; seed++) if (model.run(seed, 0)) solved++;
+        double ms = (System.nanoTime() - start) / 1e6 / seeds;
+
+        System.out.printf(
+          "%-22s %-17s %4d/%-4d %12.2f%n",
+          sample.getKey(),
+          selector.getKey(),
+          solved,
+          seeds,
+          ms
+        );
+      }
+    }
+  }
+}
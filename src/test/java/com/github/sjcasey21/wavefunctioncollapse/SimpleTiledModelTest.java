@@ -0,0 +1,93 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.function.IntUnaryOperator;
+import org.junit.Test;
+
+public class SimpleTiledModelTest {
+  private static final String[] SYMMETRIES = { "L", "T", "I", "\\", "F", "X" };
+
+  // The orientation table of a class from its rotation a and reflection b,
+  // the way the tables were built before they became constants.
+  private static int[][] table(
+    int cardinality,
+    IntUnaryOperator a,
+    IntUnaryOperator b
+  ) {
+    int[][] map = new int[8][cardinality];
+    for (int t = 0; t < cardinality; t++) {
+      map[0][t] = t;
+      map[1][t] = a.applyAsInt(t);
+      map[2][t] = a.applyAsInt(a.applyAsInt(t));
+      map[3][t] = a.applyAsInt(a.applyAsInt(a.applyAsInt(t)));
+      map[4][t] = b.applyAsInt(t);
+      map[5][t] = b.applyAsInt(a.applyAsInt(t));
+      map[6][t] = b.applyAsInt(a.applyAsInt(a.applyAsInt(t)));
+      map[7][t] = b.applyAsInt(a.applyAsInt(a.applyAsInt(a.applyAsInt(t))));
+    }
+    return map;
+  }
+
+  @Test
+  public void tablesFollowFromRotationAndReflection() {
+    assertArrayEquals(
+      table(4, i -> (i + 1) % 4, i -> i % 2 == 0 ? i + 1 : i - 1),
+      SimpleTiledModel.symmetryActions("L")
+    );
+    assertArrayEquals(
+      table(4, i -> (i + 1) % 4, i -> i % 2 == 0 ? i : 4 - i),
+      SimpleTiledModel.symmetryActions("T")
+    );
+    assertArrayEquals(
+      table(2, i -> 1 - i, i -> i),
+      SimpleTiledModel.symmetryActions("I")
+    );
+    assertArrayEquals(
+      table(2, i -> 1 - i, i -> 1 - i),
+      SimpleTiledModel.symmetryActions("\\")
+    );
+    assertArrayEquals(
+      table(8, i -> i < 4 ? (i + 1) % 4 : 4 + (i - 1) % 4, i -> i < 4 ? i + 4 : i - 4),
+      SimpleTiledModel.symmetryActions("F")
+    );
+    assertArrayEquals(table(1, i -> i, i -> i), SimpleTiledModel.symmetryActions("X"));
+  }
+
+  @Test
+  public void tablesAreActionsOfTheSquaresSymmetries() {
+    for (String symmetry : SYMMETRIES) {
+      int[][] map = SimpleTiledModel.symmetryActions(symmetry);
+      assertEquals(symmetry, 8, map.length);
+      int cardinality = map[0].length;
+
+      for (int t = 0; t < cardinality; t++) {
+        // Row 0 is the identity, a quarter turn four times is too, and so
+        // is reflecting twice.
+        assertEquals(symmetry, t, map[0][t]);
+        int turned = t;
+        for (int k = 0; k < 4; k++) turned = map[1][turned];
+        assertEquals(symmetry, t, turned);
+        assertEquals(symmetry, t, map[4][map[4][t]]);
+
+        // Row s + 1 is row s after another quarter turn, mirrored or not.
+        for (int s = 0; s < 8; s++) if (s % 4 != 3) assertEquals(
+          symmetry,
+          map[s + 1][t],
+          map[s][map[1][t]]
+        );
+      }
+
+      // Every row permutes the orientations.
+      for (int[] row : map) {
+        boolean[] seen = new boolean[cardinality];
+        for (int u : row) {
+          assertFalse(symmetry, seen[u]);
+          seen[u] = true;
+        }
+      }
+    }
+  }
+}
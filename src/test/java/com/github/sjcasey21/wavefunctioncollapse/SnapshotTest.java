@@ -0,0 +1,162 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotTest {
+  private static PatternSet patterns;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void compile() throws IOException {
+    BufferedImage sample = ImageIO.read(new File("lair3.png"));
+    patterns = PatternSet.compile(sample, 3, true, 8);
+  }
+
+  private static OverlappingModel model() {
+    return new OverlappingModel(patterns, 24, 24, true, 0);
+  }
+
+  static int[] pixels(Model model) {
+    BufferedImage image = model.graphics();
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+
+  @Test
+  public void resumingARestoredSnapshotMatchesAnUninterruptedRun() {
+    for (int seed = 1; seed <= 3; seed++) {
+      OverlappingModel whole = model();
+      assertTrue(whole.run(seed, 0));
+
+      OverlappingModel first = model();
+      first.run(seed, 40);
+      Snapshot snapshot = first.snapshot();
+
+      OverlappingModel second = model();
+      second.restore(snapshot);
+      assertTrue(second.resume(0));
+      assertArrayEquals(pixels(whole), pixels(second));
+
+      // A snapshot is a fork point: restoring it again replays the same run.
+      first.restore(snapshot);
+      assertTrue(first.resume(0));
+      assertArrayEquals(pixels(whole), pixels(first));
+    }
+  }
+
+  @Test
+  public void checkpointFilesRoundTrip() throws IOException {
+    OverlappingModel whole = model();
+    assertTrue(whole.run(7, 0));
+
+    OverlappingModel first = model();
+    first.run(7, 40);
+    Path written = this.folder.newFile("written").toPath();
+    Path streamed = this.folder.newFile("streamed").toPath();
+    first.snapshot().write(written);
+    first.checkpoint(streamed);
+    assertArrayEquals(Files.readAllBytes(written), Files.readAllBytes(streamed));
+
+    OverlappingModel second = model();
+    second.restore(Snapshot.read(streamed));
+    assertTrue(second.resume(0));
+    assertArrayEquals(pixels(whole), pixels(second));
+  }
+
+  @Test
+  public void theEntropyHeapResumesWithItsNoise() throws IOException {
+    for (int seed = 1; seed <= 3; seed++) {
+      OverlappingModel whole = model();
+      whole.setSelector(CellSelector.entropy());
+      boolean ok = whole.run(seed, 0);
+
+      OverlappingModel first = model();
+      first.setSelector(CellSelector.entropy());
+      first.run(seed, 40);
+      Path path = this.folder.newFile("heap" + seed).toPath();
+      first.checkpoint(path);
+
+      OverlappingModel second = model();
+      second.setSelector(CellSelector.entropy());
+      second.restore(Snapshot.read(path));
+      assertEquals(ok, second.resume(0));
+      if (ok) assertArrayEquals(pixels(whole), pixels(second));
+    }
+  }
+
+  private static void assertUnreadable(Path path) {
+    try {
+      Snapshot.read(path);
+      fail("Read " + path);
+    } catch (IOException expected) {}
+  }
+
+  @Test
+  public void damagedCheckpointFilesAreRejected() throws IOException {
+    OverlappingModel model = model();
+    model.run(7, 40);
+    Path path = this.folder.newFile("checkpoint").toPath();
+    model.checkpoint(path);
+    byte[] bytes = Files.readAllBytes(path);
+
+    Path damaged = this.folder.newFile("damaged").toPath();
+    Files.write(damaged, Arrays.copyOf(bytes, bytes.length - 1));
+    assertUnreadable(damaged);
+
+    // Header fields, in order from byte 8: FMX, FMY, FMZ, T, observed,
+    // counters, stack, selector and random lengths.
+    int[][] headers = {
+      { 8, 1 << 20 },
+      { 8, -24 },
+      { 12, 1 << 16 },
+      { 20, 0 },
+      { 28, Integer.MAX_VALUE },
+      { 32, -1 },
+      { 36, 1 },
+      { 40, Integer.MAX_VALUE },
+    };
+    for (int[] header : headers) {
+      byte[] copy = bytes.clone();
+      ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(header[0], header[1]);
+      Files.write(damaged, copy);
+      assertUnreadable(damaged);
+    }
+  }
+
+  @Test
+  public void checkpointFilesAreLittleEndian() throws IOException {
+    Path path = this.folder.newFile("checkpoint").toPath();
+    model().checkpoint(path);
+
+    byte[] bytes = Files.readAllBytes(path);
+    assertEquals(0x53, bytes[0]);
+    assertEquals(0x43, bytes[1]);
+    assertEquals(0x46, bytes[2]);
+    assertEquals(0x57, bytes[3]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void snapshotsOfOtherRulesAreRejected() {
+    BufferedImage sample = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+    sample.setRGB(1, 1, 0xffffff);
+    OverlappingModel other = new OverlappingModel(sample, 2, 24, 24, true, true, 8, 0);
+    other.restore(model().snapshot());
+  }
+}
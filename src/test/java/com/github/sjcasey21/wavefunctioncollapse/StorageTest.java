@@ -0,0 +1,169 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import javax.imageio.ImageIO;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StorageTest {
+  private static PatternSet patterns;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void compile() throws IOException {
+    BufferedImage sample = ImageIO.read(new File("Knot.png"));
+    patterns = PatternSet.compile(sample, 3, true, 8);
+  }
+
+  private Storage[] storages() throws IOException {
+    return new Storage[] {
+      Storage.direct(),
+      Storage.mapped(this.folder.newFolder().toPath()),
+    };
+  }
+
+  // A model that propagates with counters, or with masks.
+  private static OverlappingModel model(Storage storage, boolean counters) {
+    OverlappingModel model = new OverlappingModel(patterns, 24, 24, true, 0);
+    model.setStorage(storage);
+    if (counters) model.maskDensity = Integer.MAX_VALUE; else model.counterLimit = 0;
+    return model;
+  }
+
+  // Every storage runs the same seeds on one model, so resets are covered too.
+  private void assertSameOutputs(boolean counters) throws IOException {
+    OverlappingModel heap = model(Storage.heap(), counters);
+    int solved = 0;
+    for (Storage storage : this.storages()) {
+      OverlappingModel model = model(storage, counters);
+
+      for (int seed = 1; seed <= 3; seed++) {
+        boolean ok = heap.run(seed, 0);
+        assertEquals(ok, model.run(seed, 0));
+        assertEquals(counters, model.compatible != null);
+        if (!ok) continue;
+        solved++;
+        assertArrayEquals(SnapshotTest.pixels(heap), SnapshotTest.pixels(model));
+      }
+    }
+    assertTrue(solved > 0);
+  }
+
+  @Test
+  public void countersGiveTheSameOutputsOnEveryStorage() throws IOException {
+    this.assertSameOutputs(true);
+  }
+
+  @Test
+  public void masksGiveTheSameOutputsOnEveryStorage() throws IOException {
+    this.assertSameOutputs(false);
+  }
+
+  @Test
+  public void buffersReadBackWhatWasWritten() throws IOException {
+    for (Storage storage : this.storages()) {
+      Storage.Longs longs = storage.longs(5);
+      longs.put(1, new long[] { -1, 1L << 40, 7 });
+      longs.set(4, Long.MIN_VALUE);
+      assertArrayEquals(
+        new long[] { 0, -1, 1L << 40, 7, Long.MIN_VALUE },
+        longs.toArray(5)
+      );
+
+      LongBuffer buffer = LongBuffer.allocate(2);
+      longs.get(2, buffer, 2);
+      assertArrayEquals(new long[] { 1L << 40, 7 }, buffer.array());
+
+      Storage.Ints bytes = storage.counters(3, 200);
+      bytes.fill(0, 3, 200);
+      assertEquals(199, bytes.decrement(1));
+      bytes.set(2, 0);
+      assertEquals(-1, bytes.decrement(2));
+      assertArrayEquals(new int[] { 200, 199, 255 }, bytes.toArray(3));
+    }
+  }
+
+  // The heap, but with int counters whatever their longest row.
+  private static final Storage WIDE = new Storage() {
+    @Override
+    Longs longs(int length) {
+      return Storage.heap().longs(length);
+    }
+
+    @Override
+    Ints ints(int length) {
+      return Storage.heap().ints(length);
+    }
+
+    @Override
+    Ints bytes(int length) {
+      return Storage.heap().bytes(length);
+    }
+
+    @Override
+    Ints chars(int length) {
+      return Storage.heap().chars(length);
+    }
+
+    @Override
+    Ints counters(int length, int max) {
+      return this.ints(length);
+    }
+
+    @Override
+    boolean onHeap() {
+      return true;
+    }
+  };
+
+  @Test
+  public void narrowCountersGiveTheSameOutputsAsInts() {
+    OverlappingModel narrow = model(Storage.heap(), true);
+    OverlappingModel wide = model(WIDE, true);
+
+    int solved = 0;
+    for (int seed = 1; seed <= 3; seed++) {
+      boolean ok = wide.run(seed, 0);
+      assertEquals(ok, narrow.run(seed, 0));
+      assertTrue(narrow.compatible instanceof Storage.HeapBytes);
+      assertTrue(wide.compatible instanceof Storage.HeapInts);
+      if (!ok) continue;
+      solved++;
+      assertArrayEquals(SnapshotTest.pixels(wide), SnapshotTest.pixels(narrow));
+    }
+    assertTrue(solved > 0);
+  }
+
+  @Test
+  public void snapshotsMoveBetweenCounterWidths() {
+    for (int seed = 1; seed <= 3; seed++) {
+      OverlappingModel whole = model(Storage.heap(), true);
+      boolean ok = whole.run(seed, 0);
+
+      OverlappingModel narrow = model(Storage.heap(), true);
+      narrow.run(seed, 40);
+      OverlappingModel wide = model(WIDE, true);
+      wide.restore(narrow.snapshot());
+      assertEquals(ok, wide.resume(0));
+      if (ok) assertArrayEquals(SnapshotTest.pixels(whole), SnapshotTest.pixels(wide));
+
+      wide = model(WIDE, true);
+      wide.run(seed, 40);
+      narrow = model(Storage.heap(), true);
+      narrow.restore(wide.snapshot());
+      assertEquals(ok, narrow.resume(0));
+      if (ok) assertArrayEquals(SnapshotTest.pixels(whole), SnapshotTest.pixels(narrow));
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TextCorpusTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Learner keyed by one string per chunk, as TextWFCModel used to be. */
+  private static final class Reference {
+    final List<char[][]> tiles = new ArrayList<>();
+    final List<Integer> frequencies = new ArrayList<>();
+    final Set<Long> horizontal = new HashSet<>(), vertical = new HashSet<>();
+
+    Reference(char[][] input, int chunkWidth, int chunkHeight) {
+      Map<String, Integer> ids = new HashMap<>();
+      int gridWidth = (input[0].length + chunkWidth - 1) / chunkWidth;
+      int gridHeight = (input.length + chunkHeight - 1) / chunkHeight;
+      int[][] grid = new int[gridHeight][gridWidth];
+
+      for (int ty = 0; ty < gridHeight; ty++) for (int tx = 0; tx < gridWidth; tx++) {
+        int y = ty * chunkHeight, x = tx * chunkWidth;
+        char[][] chunk = new char[Math.min(chunkHeight, input.length - y)][Math.min(
+            chunkWidth,
+            input[0].length - x
+          )];
+        for (int dy = 0; dy < chunk.length; dy++) for (int dx = 0; dx <
+          chunk[0].length; dx++) chunk[dy][dx] = input[y + dy][x + dx];
+
+        Integer id = ids.get(Arrays.deepToString(chunk));
+        if (id == null) {
+          id = this.tiles.size();
+          ids.put(Arrays.deepToString(chunk), id);
+          this.tiles.add(chunk);
+          this.frequencies.add(0);
+        }
+        this.frequencies.set(id, this.frequencies.get(id) + 1);
+        grid[ty][tx] = id;
+
+        if (tx > 0) this.horizontal.add(TextCorpus.pair(grid[ty][tx - 1], id));
+        if (ty > 0) this.vertical.add(TextCorpus.pair(grid[ty - 1][tx], id));
+      }
+    }
+  }
+
+  private static Set<Long> pairs(TextCorpus.LongSet set) {
+    Set<Long> result = new HashSet<>();
+    set.forEach(result::add);
+    return result;
+  }
+
+  private static void assertMatches(Reference expected, TextCorpus actual) {
+    assertEquals(expected.tiles.size(), actual.tileCount());
+    for (int t = 0; t < actual.tileCount(); t++) {
+      assertTrue(Arrays.deepEquals(expected.tiles.get(t), actual.tiles.get(t)));
+      assertEquals((int) expected.frequencies.get(t), actual.frequencies[t]);
+    }
+    assertEquals(expected.horizontal, pairs(actual.horizontal));
+    assertEquals(expected.vertical, pairs(actual.vertical));
+  }
+
+  private static char[][] random(int width, int height, String alphabet, long seed) {
+    Random random = new Random(seed);
+    char[][] input = new char[height][width];
+    for (char[] row : input) for (int x = 0; x < width; x++) row[x] =
+      alphabet.charAt(random.nextInt(alphabet.length()));
+    return input;
+  }
+
+  private Path write(char[][] input, String newline) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (char[] row : input) text.append(row).append(newline);
+    Path path = this.folder.newFile().toPath();
+    Files.write(path, text.toString().getBytes(StandardCharsets.ISO_8859_1));
+    return path;
+  }
+
+  private static char[][] lines(Path path) throws IOException {
+    return Files
+      .readAllLines(path, StandardCharsets.ISO_8859_1)
+      .stream()
+      .map(String::toCharArray)
+      .toArray(char[][]::new);
+  }
+
+  @Test
+  public void matchesThePerChunkStringLearner() {
+    int[][] chunks = { { 1, 1 }, { 2, 2 }, { 3, 2 }, { 2, 5 } };
+    for (int[] chunk : chunks) for (long seed = 0; seed < 4; seed++) {
+      char[][] input = random(37, 23, "ABCD", seed);
+      assertMatches(
+        new Reference(input, chunk[0], chunk[1]),
+        TextCorpus.of(input, chunk[0], chunk[1])
+      );
+    }
+  }
+
+  @Test
+  public void loadingAFileMatchesLearningFromMemory() throws IOException {
+    char[][] sample = lines(Paths.get("input.txt"));
+    for (int[] chunk : new int[][] { { 2, 2 }, { 3, 3 } }) {
+      TextCorpus loaded = TextCorpus.load(
+        Collections.singletonList(Paths.get("input.txt")),
+        chunk[0],
+        chunk[1]
+      );
+      TextCorpus learned = TextCorpus.of(sample, chunk[0], chunk[1]);
+      assertMatches(new Reference(sample, chunk[0], chunk[1]), loaded);
+      assertEquals(learned.rulesHash(), loaded.rulesHash());
+    }
+
+    char[][] input = random(41, 17, "xyz.#", 9);
+    for (String newline : new String[] { "\n", "\r\n" }) {
+      TextCorpus loaded = TextCorpus.load(
+        Collections.singletonList(this.write(input, newline)),
+        2,
+        3
+      );
+      assertMatches(new Reference(input, 2, 3), loaded);
+      assertEquals(TextCorpus.of(input, 2, 3).rulesHash(), loaded.rulesHash());
+    }
+  }
+
+  @Test
+  public void filesLoadedTogetherShareTileIds() throws IOException {
+    char[][] first = random(20, 10, "AB", 1), second = random(20, 10, "BC", 2);
+    TextCorpus together = TextCorpus.load(
+      Arrays.asList(this.write(first, "\n"), this.write(second, "\n")),
+      2,
+      2
+    );
+    TextCorpus alone = TextCorpus.of(first, 2, 2);
+
+    // Tiles are numbered in order of first occurrence, file by file.
+    for (int t = 0; t < alone.tileCount(); t++) assertTrue(
+      Arrays.deepEquals(alone.tiles.get(t), together.tiles.get(t))
+    );
+    int total = 0;
+    for (int t = 0; t < together.tileCount(); t++) total += together.frequencies[t];
+    assertEquals(2 * 10 * 5, total);
+  }
+}
@@ -0,0 +1,62 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TextWFCModelTest {
+  private static TextCorpus corpus() throws IOException {
+    return TextCorpus.load(Collections.singletonList(Paths.get("input.txt")), 2, 2);
+  }
+
+  private static String stdout(Runnable action) {
+    PrintStream out = System.out;
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(captured));
+    try {
+      action.run();
+    } finally {
+      System.setOut(out);
+    }
+    return captured.toString();
+  }
+
+  @Test
+  public void generatesWithoutPrintingByDefault() throws Exception {
+    TextCorpus corpus = corpus();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      String printed = stdout(
+        () -> {
+          try {
+            TextWFCModel model = new TextWFCModel(corpus, 24, 9);
+            model.generate(1, 10, TimeUnit.SECONDS, executor).get();
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+        }
+      );
+      assertEquals("", printed);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void verboseModelsPrintTheirDiagnostics() throws Exception {
+    TextCorpus corpus = corpus();
+    String printed = stdout(() -> new TextWFCModel(corpus, 24, 9, true).run());
+    assertTrue(printed.contains("Grid dimensions: 12x5"));
+    assertTrue(printed.contains("Chosen tile at"));
+  }
+}
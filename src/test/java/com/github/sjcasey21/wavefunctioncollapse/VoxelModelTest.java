@@ -0,0 +1,155 @@
+package com.github.sjcasey21.wavefunctioncollapse;
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import org.junit.Test;
+
+public class VoxelModelTest {
+  // Every observed cell is allowed next to each of its up to six neighbours.
+  private static void assertFollowsRules(Model model) {
+    for (int i = 0; i < model.observed.length; i++) {
+      int t = model.observed[i];
+      for (int d = 0; d < 6; d++) {
+        int j = model.neighbor(i, d);
+        if (j < 0) continue;
+        int u = model.observed[j];
+        assertTrue(
+          "tile " + u + " next to " + t + " in direction " + d,
+          Arrays.stream(model.propagator[d][t]).anyMatch(v -> v == u)
+        );
+      }
+    }
+  }
+
+  private static Map<String, String> attributes(String... pairs) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (int k = 0; k < pairs.length; k += 2) result.put(pairs[k], pairs[k + 1]);
+    return result;
+  }
+
+  // Most of the knot/data.xml rules in every layer, each tile either
+  // repeated or followed by empty space above it.
+  private static VoxelTiledModel knots(String subsetName) {
+    List<Map<String, String>> tiles = new ArrayList<Map<String, String>>();
+    String[][] symmetries = {
+      { "corner", "L" },
+      { "cross", "I" },
+      { "empty", "X" },
+      { "line", "I" },
+      { "t", "T" },
+    };
+    Map<String, int[]> data = new HashMap<String, int[]>();
+    for (int k = 0; k < symmetries.length; k++) {
+      tiles.add(attributes("name", symmetries[k][0], "symmetry", symmetries[k][1]));
+      data.put(symmetries[k][0], new int[] { k });
+    }
+
+    List<Map<String, String>> neighbors = new ArrayList<Map<String, String>>();
+    String[][] horizontal = {
+      { "corner 1", "empty" },
+      { "corner", "cross" },
+      { "corner", "cross 1" },
+      { "corner", "line" },
+      { "corner 1", "line 1" },
+      { "corner", "t" },
+      { "corner 1", "corner 3" },
+      { "corner 1", "corner" },
+      { "corner", "corner 1" },
+      { "corner", "corner 2" },
+      { "cross", "cross" },
+      { "cross", "cross 1" },
+      { "cross 1", "cross 1" },
+      { "cross", "line" },
+      { "cross 1", "line" },
+      { "empty", "empty" },
+      { "empty", "line 1" },
+      { "line", "line" },
+      { "line 1", "line 1" },
+    };
+    for (String[] pair : horizontal) neighbors.add(
+      attributes("left", pair[0], "right", pair[1])
+    );
+    for (String[] pair : symmetries) {
+      neighbors.add(attributes("bottom", pair[0], "top", pair[0]));
+      neighbors.add(attributes("bottom", pair[0], "top", "empty"));
+    }
+
+    Map<String, String[]> subsets = new HashMap<String, String[]>();
+    subsets.put("Standard", new String[] { "corner", "cross", "empty", "line" });
+
+    return new VoxelTiledModel(
+      1,
+      tiles,
+      neighbors,
+      subsets,
+      data,
+      subsetName,
+      8,
+      8,
+      4,
+      false
+    );
+  }
+
+  @Test
+  public void tiledVolumesFollowTheirRules() {
+    VoxelTiledModel model = knots("Standard");
+    assertEquals(4 + 2 + 1 + 2, model.T);
+
+    int solved = 0;
+    for (int seed = 1; seed <= 5; seed++) {
+      if (!model.run(seed, 0)) continue;
+      solved++;
+      assertFollowsRules(model);
+    }
+    assertTrue(solved > 0);
+  }
+
+  @Test
+  public void tileOrientationsMatchTheirSymmetry() {
+    VoxelTiledModel model = knots(null);
+    // corner (L) has 4 orientations, cross and line (I) 2, empty 1, t (T) 4.
+    assertEquals(4 + 2 + 1 + 2 + 4, model.T);
+    assertEquals(
+      Arrays.asList("corner 0", "corner 1", "corner 2", "corner 3", "cross 0"),
+      model.tilenames.subList(0, 5)
+    );
+  }
+
+  // Floors with pillars on them, repeated in every direction.
+  private static int[][][] rooms() {
+    int[][][] data = new int[6][6][4];
+    for (int x = 0; x < 6; x++) for (int y = 0; y < 6; y++) {
+      data[x][y][0] = 1;
+      boolean pillar = x % 3 == 0 && y % 3 == 0;
+      for (int z = 1; z < 4; z++) data[x][y][z] = pillar ? 2 : z == 3 ? 3 : 0;
+    }
+    return data;
+  }
+
+  @Test
+  public void overlappingVolumesFollowTheirRules() {
+    VoxelOverlappingModel model = new VoxelOverlappingModel(
+      rooms(),
+      2,
+      12,
+      12,
+      4,
+      true,
+      true,
+      8,
+      0
+    );
+
+    int solved = 0;
+    for (int seed = 1; seed <= 5; seed++) {
+      if (!model.run(seed, 0)) continue;
+      solved++;
+      assertFollowsRules(model);
+    }
+    assertTrue(solved > 0);
+  }
+}